@@ -0,0 +1,171 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import edu.wpi.first.wpijavacv.StormCVUtil;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import edu.wpi.first.wpijavacv.WPIImage;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times each stage of StormCV on its own, plus the whole of processImage,
+ * on synthetic frames (see SyntheticFrames).
+ *
+ * Every stage gets the input it would see in a real frame, captured once
+ * per trial. Stages that work in place have to restore that input first;
+ * copyMask and copyFrame time just that copy so it can be subtracted.
+ *
+ * Run with "ant bench". Allocation rates come from the gc profiler that
+ * target turns on.
+ * @author Joe
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StageBenchmark {
+    @Param({"320x240", "640x480", "1280x960"})
+    public String resolution;
+
+    @Param({"1", "4"})
+    public int targets;
+
+    @Param({"0.002"})
+    public double noise;
+
+    private StormCV _cv;
+
+    private WPIColorImage _frame,  // Untouched synthetic frame
+                          _work;   // Copy of it for stages that draw
+    private IplImage _detect;      // What _doThreshold reads
+    private IplImage _thresholded, // _bin after each stage
+                     _closed;
+    private CvMemStoragePos _contoursEnd = new CvMemStoragePos();
+    private CvSeq _contours;
+    private ArrayList<CvSeq> _polygons;
+    private CvPoint _quad;
+
+    @Setup
+    public void setup() {
+        // The pipeline reports to the console when it isn't attached to
+        // SmartDashboard; keep that out of the benchmark output
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+
+        String[] size = resolution.split("x");
+        int width  = Integer.parseInt(size[0]),
+            height = Integer.parseInt(size[1]);
+
+        _frame = StormCVUtil.createWPIColorImage(width, height);
+        _work  = StormCVUtil.createWPIColorImage(width, height);
+        SyntheticFrames.draw(StormCVUtil.getIplImage(_frame), targets, noise, 2729);
+
+        _cv = new StormCV();
+        _cv._sendResults = false;
+        _cv._initVars();
+
+        // Run the stages once to capture each one's input
+        cvCopy(StormCVUtil.getIplImage(_frame), StormCVUtil.getIplImage(_work));
+        _detect = _cv._prepareDetection(_cv._frame,_work);
+        _cv._doThreshold(_cv._frame,_detect);
+        _thresholded = _copy(_cv._frame.bin);
+        _cv._closeHoles(_cv._frame);
+        _closed = _copy(_cv._frame.bin);
+        _contours = _cv._findContours(_cv._frame);
+        cvSaveMemStoragePos(_cv._storage, _contoursEnd);
+        _polygons = _cv._convexPolygons(_cv._frame,_contours);
+
+        _quad = new CvPoint(4);
+        for(CvSeq polygon:_polygons) {
+            if(polygon.total() == 4) {
+                cvCvtSeqToArray(polygon, _quad, CV_WHOLE_SEQ);
+                break;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _thresholded.release();
+        _closed.release();
+        _frame.dispose();
+        _work.dispose();
+        _cv.close();
+    }
+
+    @Benchmark
+    public IplImage copyMask() {
+        cvCopy(_closed, _cv._frame.bin);
+        return _cv._frame.bin;
+    }
+
+    @Benchmark
+    public WPIImage copyFrame() {
+        cvCopy(StormCVUtil.getIplImage(_frame), StormCVUtil.getIplImage(_work));
+        return _work;
+    }
+
+    @Benchmark
+    public IplImage threshold() {
+        _cv._doThreshold(_cv._frame,_detect);
+        return _cv._frame.bin;
+    }
+
+    @Benchmark
+    public IplImage closeHoles() {
+        cvCopy(_thresholded, _cv._frame.bin);
+        _cv._closeHoles(_cv._frame);
+        return _cv._frame.bin;
+    }
+
+    @Benchmark
+    public CvSeq findContours() {
+        // cvFindContours eats its input
+        cvCopy(_closed, _cv._frame.bin);
+        return _cv._findContours(_cv._frame);
+    }
+
+    @Benchmark
+    public ArrayList<CvSeq> runLengthBlobs() {
+        // The alternative to findContours + convexHull, for comparison
+        // against their sum
+        cvCopy(_closed, _cv._frame.bin);
+        return _cv._blobPolygons(_cv._frame);
+    }
+
+    @Benchmark
+    public ArrayList<CvSeq> convexHull() {
+        // Throw away the previous hulls, keeping the contours
+        cvRestoreMemStoragePos(_cv._storage, _contoursEnd);
+        return _cv._convexPolygons(_cv._frame,_contours);
+    }
+
+    @Benchmark
+    public double aspectRatio() {
+        return _cv._aspectRatio(_quad);
+    }
+
+    @Benchmark
+    public int[] selectTargets() {
+        return _cv._selectTargets(_cv._frame, _polygons, _work);
+    }
+
+    @Benchmark
+    public WPIImage processImage() {
+        cvCopy(StormCVUtil.getIplImage(_frame), StormCVUtil.getIplImage(_work));
+        return _cv.processImage(_work);
+    }
+
+    private static IplImage _copy(IplImage image) {
+        IplImage copy = IplImage.create(image.cvSize(), image.depth(), image.nChannels());
+        cvCopy(image, copy);
+        return copy;
+    }
+}
@@ -11,7 +11,7 @@ public class StormCVUtil {
     {
         return image.image;
     }
-    
+
     public static CvSeq getCvSeq(WPIContour contour)
     {
         return contour.getCVSeq();
@@ -24,39 +24,123 @@ public class StormCVUtil {
 
     public static WPIGrayscaleImage makeWPIGrayscaleImage(IplImage arr)
     {
-        IplImage tempImage = IplImage.create(arr.cvSize(), arr.depth(), 1);
-        cvCopy(arr, tempImage);
-        return new WPIGrayscaleImage(tempImage);
+        return new WPIGrayscaleImage(_copyOf(arr));
     }
 
     public static WPIColorImage makeWPIColorImage(IplImage arr)
     {
-        IplImage tempImage = IplImage.create(arr.cvSize(), arr.depth(), 1);
-        cvCopy(arr, tempImage);
-        return new WPIColorImage(tempImage);
+        return new WPIColorImage(_copyOf(arr));
     }
-    
+
+    /**
+     * Makes a blank 8-bit BGR image. The returned WPIColorImage owns the
+     * native buffer, so dispose() it (or let it be collected) to free it.
+     */
+    public static WPIColorImage createWPIColorImage(int width,int height)
+    {
+        return new WPIColorImage(IplImage.create(width, height, IPL_DEPTH_8U, 3));
+    }
+
+    /**
+     * Copies image into out, reusing out's buffer whenever its size, depth
+     * and channels already match (which, frame after frame, is always).
+     * Only a mismatch allocates, and then the old buffer is freed.
+     */
     public static void copyImage(WPIImage out,IplImage image) {
-        boolean allocateNew = false;
-        if(out.image == null || out.image.depth() != image.depth()) {
-            allocateNew = true;
-        } else {
-            CvSize outSize = out.image.cvSize(),
-                   imgSize = image.cvSize();
-            if(outSize.width() != imgSize.width() || outSize.height() != imgSize.height()) {
-                allocateNew = true;
+        IplImage current = out.image;
+        if(current == null || current.width() != image.width() || current.height() != image.height() ||
+           current.depth() != image.depth() || current.nChannels() != image.nChannels()) {
+            if(out instanceof View) {
+                throw new IllegalArgumentException("Can't reallocate a view");
             }
+            out.image = _copyOf(image);
+            if(current != null) {
+                current.release();
+            }
+            return;
         }
-        if(allocateNew) {
-            System.out.println("Allocating new");
-            out.image = IplImage.create(image.cvSize(), image.depth(), 1);
-        }
-        cvCopy(image,out.image);
+        cvCopy(image,current);
     }
-    
+
     public static WPIImage dupImage(WPIImage in) {
-        IplImage newImage = IplImage.create(in.image.cvSize(), in.image.depth(), 1);
-        cvCopy(in.image, newImage);
-        return new WPIImage(newImage);
+        return new WPIImage(_copyOf(in.image));
+    }
+
+    /**
+     * Wraps image as a WPIImage without copying it: drawing on one draws on
+     * the other. The view never frees image; whoever owns image has to keep
+     * it alive for as long as the view is in use. A grayscale or color
+     * image, depending on how many channels image has.
+     */
+    public static WPIImage view(IplImage image) {
+        return (image.nChannels() == 1) ? new GrayscaleView(image, false)
+                                        : new ColorView(image, false);
+    }
+
+    /**
+     * Wraps a rectangle of image (relative to its ROI, if it has one) as a
+     * WPIImage, without copying. Only a header is allocated, and the view
+     * frees that when it's disposed; the pixels are still image's.
+     */
+    public static WPIImage view(IplImage image,int x,int y,int width,int height) {
+        CvMat subRect = CvMat.createHeader(1, 1, CV_8UC1);
+        CvRect rect = cvRect(x, y, width, height);
+        IplImage header = IplImage.createHeader(width, height, image.depth(), image.nChannels());
+        try {
+            cvGetImage(cvGetSubRect(image, subRect, rect), header);
+        } finally {
+            rect.deallocate();
+            subRect.deallocate();
+        }
+        return (image.nChannels() == 1) ? new GrayscaleView(header, true)
+                                        : new ColorView(header, true);
+    }
+
+    /** Whether image shares its pixels with something else (see view()). */
+    public static boolean isView(WPIImage image) {
+        return image instanceof View;
+    }
+
+    private static IplImage _copyOf(IplImage image) {
+        IplImage copy = IplImage.create(image.width(), image.height(), image.depth(), image.nChannels());
+        cvCopy(image, copy);
+        return copy;
+    }
+
+    // WPIImages normally free their IplImage when they're disposed (or
+    // finalized); views only free the header they were given, if any
+    private interface View {
+    }
+
+    private static class GrayscaleView extends WPIGrayscaleImage implements View {
+        private final boolean _ownsHeader;
+
+        GrayscaleView(IplImage image,boolean ownsHeader) {
+            super(image);
+            _ownsHeader = ownsHeader;
+        }
+
+        @Override
+        protected void disposed() {
+            if(_ownsHeader) {
+                image.deallocate();
+            }
+        }
+    }
+
+    private static class ColorView extends WPIColorImage implements View {
+        private final boolean _ownsHeader;
+
+        ColorView(IplImage image,boolean ownsHeader) {
+            super(image);
+            _ownsHeader = ownsHeader;
+        }
+
+        @Override
+        protected void disposed() {
+            if(_ownsHeader) {
+                image.deallocate();
+            }
+        }
     }
 }
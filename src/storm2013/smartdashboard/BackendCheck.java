@@ -0,0 +1,195 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks that both backends close holes the same way, on random masks.
+ *
+ * Each trial makes a random mask and closes a region of it three ways:
+ * JavaMorphology, ParallelStripes.close() (OpenCV), and a brute-force
+ * iterated 3x3 close in plain Java that's slow but obviously right. Trials
+ * vary the size, the number of iterations and the number of stripes, and
+ * half of them close a region inside a bigger image, like the tracking
+ * window does, with random pixels around it.
+ *
+ * The backends must agree with the brute force exactly, and leave the
+ * pixels outside the region alone. The trials with a region also count how
+ * often a plain cvMorphologyEx on the image's ROI would have disagreed:
+ * OpenCV's filters read the real pixels around an ROI, and that's the case
+ * ParallelStripes avoids by only handing OpenCV headers of the region.
+ * @author Joe
+ */
+public class BackendCheck {
+    private static final int MAX_SIZE       = 200,
+                             MAX_ITERATIONS = 3;
+
+    private final Random _random;
+    private final NativeImagePool _images = new NativeImagePool();
+    private final ParallelStripes _stripes = new ParallelStripes(1, _images);
+    private final JavaMorphology _java = new JavaMorphology(_stripes);
+    private final IplConvKernel _kernel = IplConvKernel.create(3, 3, 1, 1, CV_SHAPE_RECT, null);
+    private final CvRect _roi = new CvRect();
+
+    private int _failures,
+                _roiTrials,
+                _roiDifferences;
+
+    public BackendCheck(long seed) {
+        _random = new Random(seed);
+    }
+
+    /**
+     * Runs the given number of trials, printing each one that fails.
+     * @return how many failed
+     */
+    public int run(int trials) {
+        for(int i=0;i<trials;++i) {
+            _trial(i);
+        }
+        return _failures;
+    }
+
+    /** Trials that closed a region inside a bigger image. */
+    public int getRoiTrials() {
+        return _roiTrials;
+    }
+
+    /**
+     * How many of getRoiTrials() a cvMorphologyEx on the image's ROI would
+     * have got different from the backends.
+     */
+    public int getRoiDifferences() {
+        return _roiDifferences;
+    }
+
+    public void close() {
+        _stripes.close();
+        _images.close();
+        _roi.deallocate();
+    }
+
+    private void _trial(int trial) {
+        int imageWidth  = 1+_random.nextInt(MAX_SIZE),
+            imageHeight = 1+_random.nextInt(MAX_SIZE);
+        int left = 0,top = 0,
+            width = imageWidth,height = imageHeight;
+        boolean roi = _random.nextBoolean();
+        if(roi) {
+            width  = 1+_random.nextInt(imageWidth);
+            height = 1+_random.nextInt(imageHeight);
+            left   = _random.nextInt(imageWidth-width+1);
+            top    = _random.nextInt(imageHeight-height+1);
+        }
+        int iterations = 1+_random.nextInt(MAX_ITERATIONS);
+        _stripes.setParallelism(_random.nextBoolean() ? 1 : 1+_random.nextInt(8));
+
+        // Sparse enough to leave holes worth closing
+        byte[] mask = new byte[imageWidth*imageHeight];
+        double density = 0.2 + 0.6*_random.nextDouble();
+        for(int i=0;i<mask.length;++i) {
+            mask[i] = (byte)(_random.nextDouble() < density ? 255 : 0);
+        }
+        byte[] expected = _bruteClose(mask, imageWidth, left, top, width, height, iterations);
+
+        String name = "trial " + trial + ": " + imageWidth + "x" + imageHeight + ", region " +
+                      width + "x" + height + " at " + left + "," + top + ", " + iterations +
+                      " iterations, " + _stripes.getParallelism() + " stripes";
+        IplImage image = _images.acquire(imageWidth, imageHeight, IPL_DEPTH_8U, 1);
+        try {
+            _put(image, mask);
+            _java.close(image, left, top, width, height, iterations);
+            _compare("Pure Java", name, image, expected);
+
+            _put(image, mask);
+            _setRoi(image, left, top, width, height);
+            _stripes.close(image, width, height, _kernel, iterations);
+            cvResetImageROI(image);
+            _compare("OpenCV", name, image, expected);
+
+            if(roi) {
+                ++_roiTrials;
+                _put(image, mask);
+                _setRoi(image, left, top, width, height);
+                cvMorphologyEx(image, image, null, _kernel, CV_MOP_CLOSE, iterations);
+                cvResetImageROI(image);
+                if(!_matches(image, expected)) {
+                    ++_roiDifferences;
+                }
+            }
+        } finally {
+            // Every trial is a different size
+            _images.release(image);
+            _images.trim();
+        }
+    }
+
+    private void _compare(String backend,String name,IplImage image,byte[] expected) {
+        if(!_matches(image, expected)) {
+            ++_failures;
+            System.out.println(backend + " differs, " + name);
+        }
+    }
+
+    private void _setRoi(IplImage image,int left,int top,int width,int height) {
+        _roi.x(left).y(top).width(width).height(height);
+        cvSetImageROI(image, _roi);
+    }
+
+    // Copies a packed mask into image, row by row
+    private static void _put(IplImage image,byte[] mask) {
+        ByteBuffer buf = image.getByteBuffer();
+        int width = image.width(),
+            step  = image.widthStep();
+        for(int y=0;y<image.height();++y) {
+            buf.position(y*step);
+            buf.put(mask, y*width, width);
+        }
+    }
+
+    private static boolean _matches(IplImage image,byte[] expected) {
+        ByteBuffer buf = image.getByteBuffer();
+        int width = image.width(),
+            step  = image.widthStep();
+        for(int y=0;y<image.height();++y) {
+            for(int x=0;x<width;++x) {
+                if(buf.get(y*step+x) != expected[y*width+x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // iterations 3x3 dilations and then as many erosions, one at a time,
+    // that only ever look inside the region. Everything outside it is
+    // copied as is.
+    private static byte[] _bruteClose(byte[] mask,int stride,int left,int top,
+                                      int width,int height,int iterations) {
+        byte[] src = mask.clone(),
+               dst = mask.clone();
+        for(int pass=0;pass<2*iterations;++pass) {
+            boolean max = pass < iterations;
+            for(int y=top;y<top+height;++y) {
+                for(int x=left;x<left+width;++x) {
+                    int value = src[y*stride+x] & 0xff;
+                    for(int ny=Math.max(top, y-1);ny<=Math.min(top+height-1, y+1);++ny) {
+                        for(int nx=Math.max(left, x-1);nx<=Math.min(left+width-1, x+1);++nx) {
+                            int v = src[ny*stride+nx] & 0xff;
+                            if(max ? v > value : v < value) {
+                                value = v;
+                            }
+                        }
+                    }
+                    dst[y*stride+x] = (byte)value;
+                }
+            }
+            byte[] swap = src;
+            src = dst;
+            dst = swap;
+        }
+        return src;
+    }
+}
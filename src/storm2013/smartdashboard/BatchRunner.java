@@ -0,0 +1,290 @@
+package storm2013.smartdashboard;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a whole folder of images through StormCV without stopping, spread
+ * over several threads, for checking changes against a corpus.
+ *
+ * Each thread has its own StormCV, set up the same way as the command line
+ * tool's, so nothing is shared between images running at the same time.
+ * Every image gets a CSV row with what would have been sent for each target
+ * class, how long each stage took (blank if it didn't run) and a status.
+ * The status is "ok" unless the image couldn't be processed, in which case
+ * it says why and every other column is blank. Rows are in the same order
+ * as the images, whatever order they finish in. At the end, throughput and
+ * percentiles for the whole frame and each stage are printed.
+ * @author Joe
+ */
+public class BatchRunner {
+    private static final String[] IMAGE_SUFFIXES = { ".jpg", ".jpeg", ".png", ".bmp", ".gif" };
+
+    private final int _threads;
+    private final File _csv;
+
+    // Every pipeline the threads made, so they can all be closed at the end
+    private final List<StormCV> _created = Collections.synchronizedList(new ArrayList<StormCV>());
+    private final ThreadLocal<StormCV> _pipelines = new ThreadLocal<StormCV>() {
+        @Override
+        protected StormCV initialValue() {
+            StormCV cv = new StormCV();
+            cv._sendResults = false;
+            cv._quiet       = true;
+            cv._initVars();
+            _created.add(cv);
+            return cv;
+        }
+    };
+
+    private static class Row {
+        String line;
+        long[] stageNanos;   // null if the image couldn't be processed
+    }
+
+    public BatchRunner(int threads,File csv) {
+        _threads = Math.max(1, threads);
+        _csv     = csv;
+    }
+
+    /**
+     * Expands a list of files, directories and globs (eg. "matches/*.jpg")
+     * into the images they name. Directories are searched all the way down.
+     * Each argument's images are sorted, so runs are repeatable.
+     */
+    public static List<File> findImages(List<String> paths) throws IOException {
+        List<File> images = new ArrayList<>();
+        for(String path:paths) {
+            final List<File> found = new ArrayList<>();
+            final Path base;
+            final PathMatcher matcher;
+            if(_isGlob(path)) {
+                // Walk from the last folder before the first wildcard and
+                // match the rest of the pattern against what's under it
+                String normalized = path.replace('\\', '/');
+                int wildcard = 0;
+                while(!_isGlob(normalized.substring(wildcard, wildcard+1))) {
+                    ++wildcard;
+                }
+                int slash = normalized.lastIndexOf('/', wildcard);
+                base    = Paths.get(slash < 0  ? "." :
+                                    slash == 0 ? "/" : normalized.substring(0, slash));
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(slash+1));
+            } else {
+                base    = Paths.get(path);
+                matcher = null;
+                if(!Files.isDirectory(base)) {
+                    images.add(base.toFile());
+                    continue;
+                }
+            }
+            if(!Files.isDirectory(base)) {
+                continue;
+            }
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,BasicFileAttributes attrs) {
+                    if(_isImage(file) && (matcher == null || matcher.matches(base.relativize(file)))) {
+                        found.add(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(found);
+            images.addAll(found);
+        }
+        return images;
+    }
+
+    private static boolean _isGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 ||
+               path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+    }
+
+    private static boolean _isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        for(String suffix:IMAGE_SUFFIXES) {
+            if(name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Processes every image, writing the CSV and printing a summary. */
+    public void run(List<File> images) throws IOException, InterruptedException {
+        int stages = StageTimes.NAMES.length;
+        String[] prefixes = StormCV.prefixes;
+
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        List<Future<Row>> rows = new ArrayList<>(images.size());
+        long start = System.nanoTime();
+        for(final File image:images) {
+            rows.add(pool.submit(new Callable<Row>() {
+                @Override
+                public Row call() {
+                    return _process(image);
+                }
+            }));
+        }
+
+        long[][] stageNanos = new long[stages][images.size()];
+        int[] stageCounts = new int[stages];
+        int processed = 0,
+            failed    = 0;
+        try(PrintWriter csv = new PrintWriter(_csv, "UTF-8")) {
+            csv.print("File,Width,Height,Load ms");
+            for(String prefix:prefixes) {
+                csv.print("," + prefix + " Found," + prefix + " X Angle," + prefix + " Y Angle");
+            }
+            for(String name:StageTimes.NAMES) {
+                csv.print("," + name + " ms");
+            }
+            csv.print(",Status");
+            csv.println();
+
+            for(Future<Row> future:rows) {
+                Row row;
+                try {
+                    row = future.get();
+                } catch(ExecutionException ex) {
+                    // _process catches everything it expects to go wrong
+                    throw new IllegalStateException(ex.getCause());
+                }
+                csv.println(row.line);
+                if(row.stageNanos == null) {
+                    ++failed;
+                    continue;
+                }
+                ++processed;
+                for(int i=0;i<stages;++i) {
+                    if(row.stageNanos[i] >= 0) {
+                        stageNanos[i][stageCounts[i]++] = row.stageNanos[i];
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized(_created) {
+                for(StormCV cv:_created) {
+                    cv.close();
+                }
+                _created.clear();
+            }
+        }
+        double seconds = (System.nanoTime()-start)/1.0e9;
+
+        System.out.println("Processed " + processed + " images (" + failed + " failed) in " +
+                           String.format("%.2f", seconds) + " s on " + _threads + " threads: " +
+                           String.format("%.1f", processed/seconds) + " images/s");
+        System.out.println(String.format("%-10s %8s %8s %8s %8s", "Stage", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for(int i=0;i<stages;++i) {
+            long[] nanos = Arrays.copyOf(stageNanos[i], stageCounts[i]);
+            Arrays.sort(nanos);
+            System.out.println(String.format("%-10s %8.3f %8.3f %8.3f %8.3f", StageTimes.NAMES[i],
+                                             _percentileMs(nanos, 0.50), _percentileMs(nanos, 0.95),
+                                             _percentileMs(nanos, 0.99), _percentileMs(nanos, 1)));
+        }
+        System.out.println("Results written to \"" + _csv + "\"");
+    }
+
+    private static double _percentileMs(long[] sorted,double fraction) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(fraction*sorted.length);
+        return sorted[Math.max(0, rank-1)]/1.0e6;
+    }
+
+    private Row _process(File file) {
+        Row row = new Row();
+        StringBuilder line = new StringBuilder();
+        line.append('"').append(file.getPath().replace("\"", "\"\"")).append('"');
+        int fileEnd = line.length();
+
+        WPIColorImage image = null;
+        try {
+            long loadStart = System.nanoTime();
+            BufferedImage buffered = ImageIO.read(file);
+            if(buffered == null) {
+                row.line = _failed(line, fileEnd, "unreadable");
+                return row;
+            }
+            image = new WPIColorImage(buffered);
+            long loadNanos = System.nanoTime()-loadStart;
+
+            StormCV cv = _pipelines.get();
+            ResultPublisher results = cv._publisher;
+            for(int i=0;i<StormCV.prefixes.length;++i) {
+                results.set(i, false, 0, 0);
+            }
+            cv.processImage(image);
+
+            line.append(',').append(image.getWidth())
+                .append(',').append(image.getHeight())
+                .append(',').append(loadNanos/1.0e6);
+            for(int i=0;i<StormCV.prefixes.length;++i) {
+                line.append(',').append(results.isFound(i) ? 1 : 0)
+                    .append(',').append(results.getX(i))
+                    .append(',').append(results.getY(i));
+            }
+
+            StageTimes times = cv._stageTimes;
+            row.stageNanos = new long[StageTimes.NAMES.length];
+            for(int i=0;i<row.stageNanos.length;++i) {
+                long nanos = times.getFrameNanos(i);
+                // A stage that really took 0 ns didn't run
+                row.stageNanos[i] = (nanos > 0) ? nanos : -1;
+                line.append(',');
+                if(nanos > 0) {
+                    line.append(nanos/1.0e6);
+                }
+            }
+            line.append(",ok");
+            row.line = line.toString();
+        } catch(IOException | RuntimeException ex) {
+            row.line       = _failed(line, fileEnd, ex.toString());
+            row.stageNanos = null;
+        } finally {
+            if(image != null) {
+                image.dispose();
+            }
+        }
+        return row;
+    }
+
+    // A row for an image that couldn't be processed: the file, every other
+    // column blank, then why
+    private static String _failed(StringBuilder line,int fileEnd,String status) {
+        line.setLength(fileEnd);
+        int blanks = 3 + 3*StormCV.prefixes.length + StageTimes.NAMES.length;
+        for(int i=0;i<blanks;++i) {
+            line.append(',');
+        }
+        line.append(",\"").append(status.replace("\"", "\"\"")).append('"');
+        return line.toString();
+    }
+}
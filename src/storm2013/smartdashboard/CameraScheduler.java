@@ -0,0 +1,173 @@
+package storm2013.smartdashboard;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed number of worker threads shared by every camera that processes
+ * asynchronously, so two cameras on one laptop take turns on the cores
+ * instead of each bringing its own threads.
+ *
+ * Cameras with a frame waiting line up first come, first served, and each
+ * turn processes one frame. A camera that still has a frame waiting after
+ * its turn goes to the back of the line, so a fast camera can't starve a
+ * slow one. A camera is only ever run by one worker at a time, since its
+ * pipeline isn't thread-safe.
+ *
+ * Each camera says how many workers it wants, and the scheduler runs as many
+ * as the greediest camera still registered, so the setting doesn't depend
+ * on which camera changed it last.
+ * @author Joe
+ */
+public class CameraScheduler {
+    /** One camera's side of the scheduler. */
+    public interface Camera {
+        /** Processes the newest waiting frame, if there is one. */
+        void runOnce();
+
+        /** Whether there's a frame waiting. */
+        boolean hasWork();
+    }
+
+    private static final CameraScheduler _shared = new CameraScheduler("StormCV worker", 2);
+
+    /** The scheduler every StormCV shares. */
+    public static CameraScheduler shared() {
+        return _shared;
+    }
+
+    private final String _name;
+    private final ArrayDeque<Camera> _ready = new ArrayDeque<>();
+    // Cameras that are either in _ready or being run, and the ones being run
+    private final Set<Camera> _scheduled = Collections.newSetFromMap(new IdentityHashMap<Camera,Boolean>()),
+                              _running   = Collections.newSetFromMap(new IdentityHashMap<Camera,Boolean>());
+    // Workers each camera wants
+    private final Map<Camera,Integer> _wanted = new IdentityHashMap<>();
+    private final int _defaultThreads;
+    private int _threads,
+                _alive,
+                _started;
+
+    public CameraScheduler(String name,int threads) {
+        _name           = name;
+        _defaultThreads = Math.max(1, threads);
+        _threads        = _defaultThreads;
+    }
+
+    /**
+     * Sets how many workers camera wants. If that changes the most any
+     * camera wants, extra workers finish what they're doing and then stop.
+     */
+    public synchronized void setThreads(Camera camera,int threads) {
+        _wanted.put(camera, Math.max(1, threads));
+        _updateThreads();
+    }
+
+    /**
+     * Cancels camera (see cancel()) and forgets how many workers it wanted.
+     */
+    public synchronized void remove(Camera camera) throws InterruptedException {
+        _wanted.remove(camera);
+        _updateThreads();
+        cancel(camera);
+    }
+
+    private void _updateThreads() {
+        int threads = _wanted.isEmpty() ? _defaultThreads : 1;
+        for(int wanted:_wanted.values()) {
+            threads = Math.max(threads, wanted);
+        }
+        _threads = threads;
+        notifyAll();
+    }
+
+    public synchronized int getThreads() {
+        return _threads;
+    }
+
+    /**
+     * Tells the scheduler camera has a frame waiting. Does nothing if it's
+     * already in line or running (it gets another turn afterwards if it
+     * still has work).
+     */
+    public synchronized void submit(Camera camera) {
+        // One that's running is put back in line when its turn ends
+        if(_scheduled.add(camera) && !_running.contains(camera)) {
+            _ready.addLast(camera);
+            notifyAll();
+        }
+        while(_alive < _threads && _alive < _scheduled.size()) {
+            _startWorker();
+        }
+    }
+
+    /**
+     * Takes camera out of line and waits for its current turn (if any) to
+     * finish. It can be submitted again afterwards.
+     */
+    public synchronized void cancel(Camera camera) throws InterruptedException {
+        _scheduled.remove(camera);
+        _ready.remove(camera);
+        while(_running.contains(camera)) {
+            wait();
+        }
+    }
+
+    private void _startWorker() {
+        ++_alive;
+        Thread worker = new Thread(_name + " " + (++_started)) {
+            @Override
+            public void run() {
+                _work();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void _work() {
+        while(true) {
+            Camera camera;
+            synchronized(this) {
+                while(_ready.isEmpty() && _alive <= _threads) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        --_alive;
+                        return;
+                    }
+                }
+                if(_alive > _threads) {
+                    --_alive;
+                    return;
+                }
+                camera = _ready.pollFirst();
+                _running.add(camera);
+            }
+
+            try {
+                camera.runOnce();
+            } catch (RuntimeException ex) {
+                // Don't let one bad frame kill a worker every camera needs
+                Logger.getLogger(CameraScheduler.class.getName()).log(Level.SEVERE, "Failed to process frame", ex);
+            }
+
+            synchronized(this) {
+                _running.remove(camera);
+                // Checked under the lock, so a frame that arrived during the
+                // turn either shows up here or gets submitted after this
+                if(_scheduled.contains(camera) && camera.hasWork()) {
+                    _ready.addLast(camera);
+                } else {
+                    _scheduled.remove(camera);
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Saves frames to disk as JPEGs on one background thread.
+ *
+ * Frames are copied into a fixed set of buffers that go back and forth
+ * between the caller and the writer thread, so saving never allocates once
+ * the frame size settles and never holds more than BUFFERS frames. When
+ * every buffer is waiting to be written the new frame is either skipped or
+ * takes the place of the oldest one that hasn't been started on; either
+ * way offer() never waits on the disk. Both outcomes are counted.
+ *
+ * close() saves whatever is still waiting, then stops the thread and lets
+ * go of the JPEG writer; frames offered after that are dropped.
+ * @author Joe
+ */
+public class CaptureWriter implements AutoCloseable {
+    public static final int BUFFERS = 4;
+
+    private static final class Capture {
+        BufferedImage image;
+        long time;
+        String folder;
+    }
+
+    // Buffers go free -> pending -> (being written) -> free
+    private final ArrayBlockingQueue<Capture> _free    = new ArrayBlockingQueue<>(BUFFERS),
+                                              _pending = new ArrayBlockingQueue<>(BUFFERS);
+
+    private final SimpleDateFormat _nameFormat = new SimpleDateFormat("yyyy-MM-dd HH.mm.ss.SSS");
+    private final ImageWriter _jpegWriter;
+    private final ImageWriteParam _jpegParam;
+
+    private volatile float _quality = 0.9f;
+    private volatile boolean _replaceOldest;
+
+    private final AtomicLong _saved   = new AtomicLong(),
+                             _dropped = new AtomicLong();
+
+    private Thread _thread;
+    private volatile boolean _closed;
+
+    public CaptureWriter() {
+        for(int i=0;i<BUFFERS;++i) {
+            _free.add(new Capture());
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        _jpegWriter = writers.next();
+        _jpegParam  = _jpegWriter.getDefaultWriteParam();
+        _jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    }
+
+    /** JPEG quality, 0-1. */
+    public void setQuality(float quality) {
+        _quality = Math.max(0, Math.min(1, quality));
+    }
+
+    /**
+     * Whether a frame offered while every buffer is full replaces the oldest
+     * waiting frame (true) or is skipped (false).
+     */
+    public void setReplaceOldest(boolean replaceOldest) {
+        _replaceOldest = replaceOldest;
+    }
+
+    public long getSaved() {
+        return _saved.get();
+    }
+
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * Queues a copy of frame (8-bit, 1 or 3 channels) to be saved in folder.
+     * Returns straight away.
+     * @return false if the frame (or an older one) had to be dropped
+     */
+    public boolean offer(IplImage frame,String folder) {
+        if(!_start()) {
+            _dropped.incrementAndGet();
+            return false;
+        }
+
+        boolean dropped = false;
+        Capture capture = _free.poll();
+        if(capture == null && _replaceOldest) {
+            // Overwrite the oldest frame the writer hasn't started on
+            capture = _pending.poll();
+            dropped = (capture != null);
+        }
+        if(capture == null) {
+            // Everything is queued or being written; skip this one
+            _dropped.incrementAndGet();
+            return false;
+        }
+
+        capture.image  = _copy(frame, capture.image);
+        capture.time   = System.currentTimeMillis();
+        capture.folder = folder;
+        _pending.add(capture);
+
+        if(dropped) {
+            _dropped.incrementAndGet();
+        }
+        return !dropped;
+    }
+
+    /** Copies frame's pixels into image, reallocating it if it doesn't fit. */
+    private static BufferedImage _copy(IplImage frame,BufferedImage image) {
+        int width    = frame.width(),
+            height   = frame.height(),
+            channels = frame.nChannels();
+        int type = (channels == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        if(image == null || image.getWidth() != width || image.getHeight() != height ||
+           image.getType() != type) {
+            image = new BufferedImage(width, height, type);
+        }
+
+        // BufferedImage rows are packed, IplImage rows may be padded
+        byte[] data  = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        ByteBuffer src = frame.getByteBuffer();
+        int rowBytes = width*channels,
+            step     = frame.widthStep();
+        for(int y=0;y<height;++y) {
+            src.position(y*step);
+            src.get(data, y*rowBytes, rowBytes);
+        }
+        return image;
+    }
+
+    // Starts the writer thread if it isn't running; false once closed
+    private synchronized boolean _start() {
+        if(_closed) {
+            return false;
+        }
+        if(_thread != null) {
+            return true;
+        }
+        _thread = new Thread("StormCV capture writer") {
+            @Override
+            public void run() {
+                while(true) {
+                    Capture capture;
+                    try {
+                        capture = _pending.take();
+                    } catch(InterruptedException ex) {
+                        // Closing; finish off what was already queued
+                        while((capture = _pending.poll()) != null) {
+                            _write(capture);
+                            _free.add(capture);
+                        }
+                        return;
+                    }
+                    _write(capture);
+                    _free.add(capture);
+                }
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.setPriority(Thread.MIN_PRIORITY);
+        _thread.start();
+        return true;
+    }
+
+    /**
+     * Writes out the frames still waiting, stops the writer thread and
+     * frees the JPEG writer. Returns once that's done.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized(this) {
+            if(_closed) {
+                return;
+            }
+            _closed = true;
+            thread  = _thread;
+        }
+        if(thread != null) {
+            thread.interrupt();
+            boolean interrupted = false;
+            while(thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Anything offered while the thread was finishing up
+        while(_pending.poll() != null) {
+            _dropped.incrementAndGet();
+        }
+        _jpegWriter.dispose();
+    }
+
+    private void _write(Capture capture) {
+        String name = "Capture " + _nameFormat.format(new Date(capture.time)) + ".jpg";
+        File folder = new File(capture.folder);
+        File out    = new File(folder, name);
+        try {
+            folder.mkdirs();
+            _jpegParam.setCompressionQuality(_quality);
+            try(ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+                _jpegWriter.setOutput(stream);
+                _jpegWriter.write(null, new IIOImage(capture.image, null, null), _jpegParam);
+            } finally {
+                _jpegWriter.reset();
+            }
+            _saved.incrementAndGet();
+        } catch(IOException | RuntimeException ex) {
+            _dropped.incrementAndGet();
+            Logger.getLogger(CaptureWriter.class.getName()).log(Level.SEVERE, "Failed to save \""+out+"\"", ex);
+        }
+    }
+}
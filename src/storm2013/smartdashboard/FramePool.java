@@ -0,0 +1,131 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacpp.Pointer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Native scratch objects that are reused from frame to frame instead of
+ * being allocated and left for the finalizers.
+ *
+ * point() hands out single CvPoints from a pool that's rewound at the start
+ * of every frame, and points() hands out one shared CvPoint array that only
+ * grows. contourRect() reads a contour's bounding rect through one reused
+ * header. Anything allocated on the frame path (here or elsewhere, through
+ * countAllocation()) is counted, so a steady-state frame should report 0.
+ * @author Joe
+ */
+public class FramePool {
+    private CvPoint[] _points = new CvPoint[0];
+    private int _nextPoint;
+
+    private CvPoint _pointArray;
+    private int _pointArrayCapacity;
+
+    // Doesn't own any memory; contourRect() points it into contour headers
+    private final CvRect _contourRect = new CvRect((Pointer)null);
+
+    // A CvContour is a CvSeq header followed by its bounding rect
+    private static final int CONTOUR_RECT_OFFSET = Loader.sizeof(CvSeq.class);
+
+    // Pointer.address isn't public, and reading it this way is the only way
+    // to aim a header at a struct without a new Java object every time
+    private static final Field _address = _addressField();
+
+    private long _allocations,
+                 _frameStart;
+
+    /**
+     * Rewinds the single point pool. Points handed out last frame must not
+     * be used after this.
+     */
+    public void beginFrame() {
+        _nextPoint  = 0;
+        _frameStart = _allocations;
+    }
+
+    /** Native allocations made since beginFrame(). */
+    public long frameAllocations() {
+        return _allocations-_frameStart;
+    }
+
+    /** Records a native allocation made outside the pool. */
+    public void countAllocation() {
+        ++_allocations;
+    }
+
+    /** A point from the pool, valid until the next beginFrame(). */
+    public CvPoint point(int x,int y) {
+        if(_nextPoint == _points.length) {
+            CvPoint[] points = new CvPoint[Math.max(16, _points.length*2)];
+            System.arraycopy(_points, 0, points, 0, _points.length);
+            _points = points;
+        }
+        CvPoint point = _points[_nextPoint];
+        if(point == null) {
+            point = new CvPoint(0, 0);
+            _points[_nextPoint] = point;
+            countAllocation();
+        }
+        ++_nextPoint;
+        return point.x(x).y(y);
+    }
+
+    /**
+     * An array of at least count points, positioned at 0. There's only one,
+     * so it's overwritten by the next call.
+     */
+    public CvPoint points(int count) {
+        if(_pointArray == null || _pointArrayCapacity < count) {
+            if(_pointArray != null) {
+                _pointArray.deallocate();
+            }
+            _pointArrayCapacity = Math.max(count, 2*_pointArrayCapacity);
+            _pointArray = new CvPoint(_pointArrayCapacity);
+            countAllocation();
+        }
+        return _pointArray.position(0);
+    }
+
+    /**
+     * The bounding rect cvFindContours stored in contour, which has to be a
+     * CvContour. The same CvRect is pointed somewhere else by the next call.
+     */
+    public CvRect contourRect(CvSeq contour) {
+        try {
+            _address.setLong(_contourRect, _address.getLong(contour) + CONTOUR_RECT_OFFSET);
+        } catch(IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return _contourRect;
+    }
+
+    private static Field _addressField() {
+        try {
+            Field address = Pointer.class.getDeclaredField("address");
+            address.setAccessible(true);
+            return address;
+        } catch(NoSuchFieldException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Bytes this thread has allocated on the Java heap so far, or -1 if the
+     * JVM can't tell us.
+     */
+    public static long threadAllocatedBytes() {
+        if(_threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)_threads;
+            if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,275 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every raw frame, along with what was sent for it, into a ring
+ * file that's mapped into memory.
+ *
+ * The file is sized once up front and split into fixed slots, so recording
+ * a frame is a copy into the mapping and nothing else: no encoding, no
+ * allocation and no write calls. Once the ring is full each new frame
+ * replaces the oldest, so the file always holds the most recent
+ * (size / frame size) frames. The OS writes the pages out on its own, which
+ * also means a crash of the dashboard doesn't lose what was recorded.
+ *
+ * Layout (all big-endian):
+ *
+ *     header:  magic, version, slot count, slot bytes, width, height,
+ *              channels, frames written                    (HEADER_BYTES)
+ *     slot i:  sequence, time (ms), config version, result count,
+ *              { found, x, y } * MAX_RESULTS                (SLOT_HEADER_BYTES)
+ *              pixels, packed rows of width*channels bytes
+ *
+ * Frame n (counting from 1) goes in slot (n-1) % slot count. A slot's
+ * sequence is 0 while it's being written. Whatever was in the file before
+ * is moved to "<file>.prev" when it's created; if that can't be done (say
+ * something else has it open), the recording goes to "<file>.<time>"
+ * instead, and getFile() says which. RecordedFrames reads it.
+ * @author Joe
+ */
+public class FrameRecorder {
+    public static final long MAGIC   = 0x53544f524d524543L;   // "STORMREC"
+    public static final int  VERSION = 1;
+
+    public static final int HEADER_BYTES      = 64,
+                            SLOT_HEADER_BYTES = 128,
+                            MAX_RESULTS       = 4,
+                            RESULT_BYTES      = 1 + 8 + 8;
+
+    // Header offsets
+    static final int H_MAGIC    = 0,
+                     H_VERSION  = 8,
+                     H_SLOTS    = 12,
+                     H_SLOTSIZE = 16,
+                     H_WIDTH    = 20,
+                     H_HEIGHT   = 24,
+                     H_CHANNELS = 28,
+                     H_WRITTEN  = 32;
+    // Slot header offsets
+    static final int S_SEQUENCE = 0,
+                     S_TIME     = 8,
+                     S_CONFIG   = 16,
+                     S_RESULTS  = 24,
+                     S_RESULT0  = 28;
+
+    private final File _file;
+    private final long _maxBytes;
+    private File _current;
+
+    private RandomAccessFile _raf;
+    private MappedByteBuffer _header;
+    private MappedByteBuffer[] _segments;
+    private int _slotsPerSegment;
+
+    private int _width,
+                _height,
+                _channels,
+                _slotCount,
+                _slotBytes;
+
+    private long _written;
+    private ByteBuffer _slot;   // Segment holding the frame being written,
+    private int _slotBase;      // null between frames
+
+    /**
+     * @param maxBytes the file's size; it holds as many whole frames as fit
+     */
+    public FrameRecorder(File file,long maxBytes) {
+        _file     = file;
+        _current  = file;
+        _maxBytes = maxBytes;
+    }
+
+    /** The file actually being recorded to. */
+    public File getFile() {
+        return _current;
+    }
+
+    /** Frames recorded since the file was (re)created. */
+    public long getFramesWritten() {
+        return _written;
+    }
+
+    /** How many frames the ring holds at the current frame size, 0 if not open. */
+    public int getCapacity() {
+        return _slotCount;
+    }
+
+    /**
+     * Copies frame (8-bit) into the next slot, replacing the oldest frame if
+     * the ring is full. The file is (re)created if the frame size changed.
+     * Results start out as not found until setResult() is called.
+     */
+    public void beginFrame(IplImage frame,long timeMillis,long configVersion) throws IOException {
+        if(_raf == null || frame.width() != _width || frame.height() != _height ||
+           frame.nChannels() != _channels) {
+            _open(frame.width(), frame.height(), frame.nChannels());
+        }
+
+        int slot = (int)(_written % _slotCount);
+        ByteBuffer segment = _segments[slot/_slotsPerSegment];
+        int base = (slot%_slotsPerSegment)*_slotBytes;
+
+        segment.putLong(base+S_SEQUENCE, 0);
+        segment.putLong(base+S_TIME,     timeMillis);
+        segment.putLong(base+S_CONFIG,   configVersion);
+        segment.putInt (base+S_RESULTS,  0);
+
+        // Packed rows, since widthStep can include padding
+        ByteBuffer src = frame.getByteBuffer();
+        int rowBytes = _width*_channels,
+            step     = frame.widthStep();
+        segment.position(base+SLOT_HEADER_BYTES);
+        if(step == rowBytes) {
+            src.limit(rowBytes*_height).position(0);
+            segment.put(src);
+        } else {
+            for(int y=0;y<_height;++y) {
+                src.limit(y*step+rowBytes).position(y*step);
+                segment.put(src);
+            }
+        }
+
+        _slot     = segment;
+        _slotBase = base;
+    }
+
+    /** Records what was sent for one target class in the current frame. */
+    public void setResult(int index,boolean found,double x,double y) {
+        if(_slot == null || index >= MAX_RESULTS) {
+            return;
+        }
+        int offset = _slotBase+S_RESULT0+index*RESULT_BYTES;
+        _slot.put      (offset,   (byte)(found ? 1 : 0));
+        _slot.putDouble(offset+1, x);
+        _slot.putDouble(offset+9, y);
+        int count = _slot.getInt(_slotBase+S_RESULTS);
+        if(index >= count) {
+            _slot.putInt(_slotBase+S_RESULTS, index+1);
+        }
+    }
+
+    /** Marks the current frame as complete. */
+    public void endFrame() {
+        if(_slot == null) {
+            return;
+        }
+        ++_written;
+        _slot.putLong(_slotBase+S_SEQUENCE, _written);
+        _header.putLong(H_WRITTEN, _written);
+        _slot = null;
+    }
+
+    public void close() {
+        _slot = null;
+        if(_raf == null) {
+            return;
+        }
+        if(_header != null) {
+            _header.force();
+            _unmap(_header);
+        }
+        if(_segments != null) {
+            for(MappedByteBuffer segment:_segments) {
+                if(segment != null) {
+                    segment.force();
+                    _unmap(segment);
+                }
+            }
+        }
+        try {
+            _raf.close();
+        } catch(IOException ex) {
+            // Nothing left to lose at this point
+        }
+        _raf      = null;
+        _header   = null;
+        _segments = null;
+    }
+
+    private void _open(int width,int height,int channels) throws IOException {
+        close();
+
+        _width     = width;
+        _height    = height;
+        _channels  = channels;
+        _slotBytes = SLOT_HEADER_BYTES + width*height*channels;
+        _slotCount = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (_maxBytes-HEADER_BYTES)/_slotBytes));
+        _written   = 0;
+
+        // A single mapping can't go past 2GB, so the slots are spread over
+        // as many as it takes
+        _slotsPerSegment = Math.max(1, Integer.MAX_VALUE/_slotBytes);
+        int segments = (_slotCount+_slotsPerSegment-1)/_slotsPerSegment;
+
+        File parent = _file.getAbsoluteFile().getParentFile();
+        if(parent != null) {
+            parent.mkdirs();
+        }
+        // Keep the last recording (eg. from before the dashboard restarted)
+        // instead of writing straight over it. Windows won't move or delete
+        // a file something else still has open or mapped, so if that fails
+        // this recording goes next to it instead.
+        _current = _file;
+        if(_file.length() > HEADER_BYTES) {
+            File previous = new File(_file.getPath() + ".prev");
+            if((previous.exists() && !previous.delete()) || !_file.renameTo(previous)) {
+                _current = new File(_file.getPath() + "." + System.currentTimeMillis());
+            }
+        }
+        _raf = new RandomAccessFile(_current, "rw");
+        try {
+            _raf.setLength(0);
+            _raf.setLength(HEADER_BYTES + (long)_slotCount*_slotBytes);
+
+            FileChannel channel = _raf.getChannel();
+            _header   = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            _segments = new MappedByteBuffer[segments];
+            for(int i=0;i<segments;++i) {
+                int slots = Math.min(_slotsPerSegment, _slotCount-i*_slotsPerSegment);
+                _segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                           HEADER_BYTES + (long)i*_slotsPerSegment*_slotBytes,
+                                           (long)slots*_slotBytes);
+            }
+        } catch(IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+
+        _header.putLong(H_MAGIC,    MAGIC);
+        _header.putInt (H_VERSION,  VERSION);
+        _header.putInt (H_SLOTS,    _slotCount);
+        _header.putInt (H_SLOTSIZE, _slotBytes);
+        _header.putInt (H_WIDTH,    width);
+        _header.putInt (H_HEIGHT,   height);
+        _header.putInt (H_CHANNELS, channels);
+        _header.putLong(H_WRITTEN,  0);
+    }
+
+    // Unmaps buffer now rather than whenever it's garbage collected, since
+    // the file can't be truncated, moved or deleted while it's mapped.
+    // There's no public way to do this, so it goes through the buffer's
+    // cleaner; if that isn't there the mapping is left to the collector.
+    private static void _unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if(cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch(ReflectiveOperationException | RuntimeException ex) {
+            // Left for the garbage collector
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Single-pass HSV range threshold straight from a BGR image to a binary mask.
+ *
+ * This gives the same result as cvCvtColor(CV_BGR2HSV) followed by the
+ * cvSplit/cvThreshold/cvAnd chain in StormCV, but it reads every source
+ * pixel once and writes the mask directly, with no intermediate planes.
+ * The HSV math is a copy of OpenCV's 8-bit integer conversion (same tables,
+ * same rounding), so the masks are bit-identical.
+ * @author Joe
+ */
+public class FusedThreshold {
+    private static final int HSV_SHIFT = 12,
+                             HSV_ROUND = 1 << (HSV_SHIFT-1);
+
+    // Fixed point reciprocals, built the same way OpenCV builds them
+    private static final int[] SDIV_TABLE = new int[256],
+                               HDIV_TABLE = new int[256];
+    static {
+        for(int i=1;i<256;++i) {
+            SDIV_TABLE[i] = (int)Math.rint((255 << HSV_SHIFT)/(1.0*i));
+            HDIV_TABLE[i] = (int)Math.rint((180 << HSV_SHIFT)/(6.0*i));
+        }
+    }
+
+    // Row buffers so pixels can be read and written in bulk. There's a set
+    // per thread, since stripes of one frame may be thresholded in parallel.
+    private final ThreadLocal<byte[][]> _rows = new RowBuffers();
+
+    static class RowBuffers extends ThreadLocal<byte[][]> {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{ new byte[0], new byte[0] };
+        }
+    }
+
+    /**
+     * Thresholds src (8-bit, 3 channel BGR) into dst (8-bit, 1 channel).
+     * Bounds are inclusive, same as the split channel threshold.
+     */
+    public void apply(IplImage src,IplImage dst,
+                      int h0,int h1,int s0,int s1,int v0,int v1) {
+        apply(src, dst, 0, 0, src.width(), src.height(), h0, h1, s0, s1, v0, v1);
+    }
+
+    /**
+     * Same as above, but only reads and writes the given rectangle of the
+     * two images (they must be the same size). Several threads can do this
+     * at once, as long as their rectangles don't overlap.
+     */
+    public void apply(IplImage src,IplImage dst,
+                      int left,int top,int width,int height,
+                      int h0,int h1,int s0,int s1,int v0,int v1) {
+        int srcStep = src.widthStep(),
+            dstStep = dst.widthStep();
+
+        byte[][] rows = _rows.get();
+        if(rows[0].length < width*3) {
+            rows[0] = new byte[width*3];
+            rows[1] = new byte[width];
+        }
+        byte[] srcRow = rows[0],
+               dstRow = rows[1];
+
+        ByteBuffer srcBuf = src.getByteBuffer(),
+                   dstBuf = dst.getByteBuffer();
+
+        for(int y=top;y<top+height;++y) {
+            srcBuf.position(y*srcStep + left*3);
+            srcBuf.get(srcRow, 0, width*3);
+
+            for(int x=0,i=0;x<width;++x,i+=3) {
+                int b = srcRow[i]   & 0xff,
+                    g = srcRow[i+1] & 0xff,
+                    r = srcRow[i+2] & 0xff;
+
+                int v    = b,
+                    vmin = b;
+                if(g > v)    { v = g; }
+                if(r > v)    { v = r; }
+                if(g < vmin) { vmin = g; }
+                if(r < vmin) { vmin = r; }
+
+                byte out = 0;
+                if(v >= v0 && v <= v1) {
+                    int diff = v-vmin;
+                    int s = saturation(v, diff);
+                    if(s >= s0 && s <= s1) {
+                        int h = hue(b, g, r, v, diff);
+                        if(h >= h0 && h <= h1) {
+                            out = (byte)255;
+                        }
+                    }
+                }
+                dstRow[x] = out;
+            }
+
+            dstBuf.position(y*dstStep + left);
+            dstBuf.put(dstRow, 0, width);
+        }
+    }
+
+    /**
+     * Whether a single BGR pixel falls inside the (inclusive) HSV bounds.
+     */
+    static boolean inRange(int b,int g,int r,
+                           int h0,int h1,int s0,int s1,int v0,int v1) {
+        int v    = Math.max(b, Math.max(g, r)),
+            vmin = Math.min(b, Math.min(g, r));
+        if(v < v0 || v > v1) {
+            return false;
+        }
+        int diff = v-vmin;
+        int s = saturation(v, diff);
+        if(s < s0 || s > s1) {
+            return false;
+        }
+        int h = hue(b, g, r, v, diff);
+        return h >= h0 && h <= h1;
+    }
+
+    /**
+     * OpenCV's 8-bit hue (0-180) for a pixel, given its max channel value
+     * and max-min difference.
+     */
+    static int hue(int b,int g,int r,int v,int diff) {
+        int vr = (v == r) ? -1 : 0,
+            vg = (v == g) ? -1 : 0;
+        int h = (vr & (g-b)) + (~vr & ((vg & (b-r+2*diff)) + (~vg & (r-g+4*diff))));
+        h = (h*HDIV_TABLE[diff] + HSV_ROUND) >> HSV_SHIFT;
+        if(h < 0) {
+            h += 180;
+        }
+        return h;
+    }
+
+    /** OpenCV's 8-bit saturation for a pixel. */
+    static int saturation(int v,int diff) {
+        return (diff*SDIV_TABLE[v] + HSV_ROUND) >> HSV_SHIFT;
+    }
+}
@@ -0,0 +1,149 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Morphological close with a 3x3 rectangle, in plain Java.
+ *
+ * This gives the same mask as cvMorphologyEx(CV_MOP_CLOSE) with StormCV's
+ * 3x3 rectangular kernel over the same region. n iterations of a 3x3
+ * rectangle are the same as one (2n+1)x(2n+1) rectangle (OpenCV makes the
+ * same substitution), and a rectangle separates into a pass along the rows
+ * and a pass down the columns. Pixels outside the region are ignored, the
+ * same as ParallelStripes.close() (which hands OpenCV a header of just the
+ * region, with its replicated border). BackendCheck compares the two.
+ *
+ * The region is copied out of the image once, the four passes go back and
+ * forth between two arrays, and the last one writes straight back. Each
+ * pass only reads the array the pass before wrote, so its stripes run in
+ * parallel without any halo.
+ * @author Joe
+ */
+public class JavaMorphology {
+    private final ParallelStripes _stripes;
+    private byte[] _a = new byte[0],
+                   _b = new byte[0];
+
+    // What the current close() is working on, for the stripe tasks
+    private IplImage _bin;
+    private int _left,_top,
+                _width,_height,
+                _radius;
+
+    public JavaMorphology(ParallelStripes stripes) {
+        _stripes = stripes;
+    }
+
+    /**
+     * Closes the given rectangle of bin (8-bit, 1 channel) in place.
+     * left and top are in bin's coordinates, whatever its ROI is.
+     */
+    public void close(IplImage bin,int left,int top,int width,int height,int iterations) {
+        if(iterations <= 0 || width <= 0 || height <= 0) {
+            return;
+        }
+        int size = width*height;
+        if(_a.length < size) {
+            _a = new byte[size];
+            _b = new byte[size];
+        }
+        _bin    = bin;
+        _left   = left;
+        _top    = top;
+        _width  = width;
+        _height = height;
+        _radius = iterations;
+
+        int stripes = _stripes.stripeCount(height, 0);
+        _stripes.run(height, stripes, _dilateRows);
+        _stripes.run(height, stripes, _dilateColumns);
+        _stripes.run(height, stripes, _erodeRows);
+        _stripes.run(height, stripes, _erodeColumns);
+        _bin = null;
+    }
+
+    // Image -> _a, then along the rows into _b
+    private final ParallelStripes.Stripe _dilateRows = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            ByteBuffer buf = _bin.getByteBuffer();
+            int step = _bin.widthStep();
+            for(int y=top;y<bottom;++y) {
+                buf.position((_top+y)*step + _left);
+                buf.get(_a, y*_width, _width);
+                _row(_a, _b, y*_width, _width, _radius, true);
+            }
+        }
+    };
+
+    // _b -> _a
+    private final ParallelStripes.Stripe _dilateColumns = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            for(int y=top;y<bottom;++y) {
+                _column(_b, _a, y, _width, _height, _radius, true);
+            }
+        }
+    };
+
+    // _a -> _b
+    private final ParallelStripes.Stripe _erodeRows = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            for(int y=top;y<bottom;++y) {
+                _row(_a, _b, y*_width, _width, _radius, false);
+            }
+        }
+    };
+
+    // _b -> _a, then back into the image
+    private final ParallelStripes.Stripe _erodeColumns = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            ByteBuffer buf = _bin.getByteBuffer();
+            int step = _bin.widthStep();
+            for(int y=top;y<bottom;++y) {
+                _column(_b, _a, y, _width, _height, _radius, false);
+                buf.position((_top+y)*step + _left);
+                buf.put(_a, y*_width, _width);
+            }
+        }
+    };
+
+    // dst[x] is the max (or min) of src[x-radius..x+radius], within the row
+    // starting at offset
+    private static void _row(byte[] src,byte[] dst,int offset,int width,int radius,boolean max) {
+        for(int x=0;x<width;++x) {
+            int from = Math.max(0,       x-radius),
+                to   = Math.min(width-1, x+radius);
+            int value = src[offset+from] & 0xff;
+            for(int i=from+1;i<=to;++i) {
+                int v = src[offset+i] & 0xff;
+                if(max ? v > value : v < value) {
+                    value = v;
+                }
+            }
+            dst[offset+x] = (byte)value;
+        }
+    }
+
+    // Row y of dst is the max (or min) of rows y-radius..y+radius of src,
+    // within the region
+    private static void _column(byte[] src,byte[] dst,int y,int width,int height,int radius,boolean max) {
+        int from = Math.max(0,        y-radius),
+            to   = Math.min(height-1, y+radius);
+        int out = y*width;
+        System.arraycopy(src, from*width, dst, out, width);
+        for(int row=from+1;row<=to;++row) {
+            int in = row*width;
+            for(int x=0;x<width;++x) {
+                int v     = src[in+x]  & 0xff,
+                    value = dst[out+x] & 0xff;
+                if(max ? v > value : v < value) {
+                    dst[out+x] = (byte)v;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package storm2013.smartdashboard;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-bucket histogram of durations.
+ *
+ * Recording is a division and an increment, so it's cheap enough to do for
+ * every stage of every frame. Percentiles are only as precise as a bucket
+ * (50 us); anything past the last bucket is counted there, but the maximum
+ * is always exact.
+ * @author Joe
+ */
+public class LatencyHistogram {
+    public static final long BUCKET_NANOS = 50000;
+    public static final int  BUCKETS      = 2000;   // 100 ms
+
+    private final long[] _counts = new long[BUCKETS];
+    private long _count,
+                 _maxNanos;
+
+    public void record(long nanos) {
+        int bucket = (int)Math.min(BUCKETS-1, Math.max(0, nanos/BUCKET_NANOS));
+        ++_counts[bucket];
+        ++_count;
+        if(nanos > _maxNanos) {
+            _maxNanos = nanos;
+        }
+    }
+
+    public long getCount() {
+        return _count;
+    }
+
+    public double getMaxMs() {
+        return _maxNanos/1.0e6;
+    }
+
+    /**
+     * The duration (in ms) that the given fraction (0-1) of recorded
+     * durations were at or below, rounded up to the end of its bucket.
+     * 0 if nothing has been recorded.
+     */
+    public double getPercentileMs(double fraction) {
+        if(_count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction*_count);
+        long seen = 0;
+        for(int i=0;i<BUCKETS;++i) {
+            seen += _counts[i];
+            if(seen >= rank && _counts[i] != 0) {
+                // The last bucket is open-ended
+                if(i == BUCKETS-1) {
+                    return getMaxMs();
+                }
+                return Math.min((i+1)*BUCKET_NANOS, _maxNanos)/1.0e6;
+            }
+        }
+        return getMaxMs();
+    }
+
+    public void reset() {
+        Arrays.fill(_counts, 0);
+        _count    = 0;
+        _maxNanos = 0;
+    }
+}
@@ -0,0 +1,178 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import edu.wpi.first.wpijavacv.StormCVUtil;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import edu.wpi.first.wpijavacv.WPIImage;
+
+/**
+ * Hands camera frames to a processing thread, keeping only the newest one.
+ *
+ * The camera side copies each frame into one of a small, fixed ring of
+ * native buffers and returns straight away. The processing side always gets
+ * the most recent frame; anything older that it didn't get to is dropped
+ * (and counted). Four slots are enough for this to never block: one being
+ * filled, one waiting, one being processed and one holding the last result
+ * that was handed back to the camera.
+ *
+ * Results are always handed back in the slot their frame came in. One that
+ * lives somewhere else (a view of the mask, say, which the next frame
+ * reuses) is copied into the slot first, so the camera never shows a
+ * buffer the processing side is still writing to.
+ * @author Joe
+ */
+public class LatestFrameQueue {
+    private static final int SLOTS = 4;
+
+    private final WPIColorImage[] _slots = new WPIColorImage[SLOTS];
+
+    // Slot indices, -1 for none
+    private int _pending    = -1,
+                _processing = -1,
+                _done       = -1;
+    private WPIImage _doneResult;
+    // For results that aren't the frame's size, scaled up before copying
+    private IplImage _scaled;
+
+    private long _received,
+                 _processed,
+                 _dropped;
+
+    /**
+     * Called from the camera thread. Copies frame into the ring and returns
+     * the latest finished result (or null if nothing has finished yet).
+     */
+    public WPIImage offer(WPIColorImage frame) {
+        int slot;
+        synchronized(this) {
+            ++_received;
+            slot = _freeSlot();
+        }
+
+        // Nothing else touches a free slot, so the copy can happen unlocked
+        IplImage src = StormCVUtil.getIplImage(frame);
+        WPIColorImage dst = _slots[slot];
+        if(dst == null || dst.getWidth() != frame.getWidth() || dst.getHeight() != frame.getHeight()) {
+            if(dst != null) {
+                dst.dispose();
+            }
+            dst = StormCVUtil.createWPIColorImage(frame.getWidth(), frame.getHeight());
+            _slots[slot] = dst;
+        }
+        cvCopy(src, StormCVUtil.getIplImage(dst));
+
+        synchronized(this) {
+            if(_pending != -1) {
+                // The worker never got to the previous frame
+                ++_dropped;
+            }
+            _pending = slot;
+            return _doneResult;
+        }
+    }
+
+    /**
+     * Called from the processing thread. Returns the newest frame, or null
+     * if there isn't one waiting. It stays valid until finish() is called.
+     */
+    public synchronized WPIColorImage poll() {
+        if(_pending == -1) {
+            return null;
+        }
+        _processing = _pending;
+        _pending    = -1;
+        return _slots[_processing];
+    }
+
+    /** Whether there's a frame waiting for poll(). */
+    public synchronized boolean hasPending() {
+        return _pending != -1;
+    }
+
+    /**
+     * Called from the processing thread once the frame from poll() is done.
+     * What result shows (8-bit, 1 or 3 channels) is what the camera thread
+     * will get back from offer() until the next frame finishes.
+     */
+    public void finish(WPIImage result) {
+        WPIColorImage slot;
+        synchronized(this) {
+            slot = _slots[_processing];
+        }
+        // Only the processing side touches the slot until it's marked done
+        IplImage src = StormCVUtil.getIplImage(result),
+                 dst = StormCVUtil.getIplImage(slot);
+        if(src != dst) {
+            _copy(src, dst);
+        }
+        synchronized(this) {
+            _done       = _processing;
+            _processing = -1;
+            _doneResult = slot;
+            ++_processed;
+        }
+    }
+
+    private void _copy(IplImage src,IplImage dst) {
+        if(src.width() != dst.width() || src.height() != dst.height()) {
+            if(_scaled == null || _scaled.width() != dst.width() || _scaled.height() != dst.height() ||
+               _scaled.nChannels() != src.nChannels()) {
+                if(_scaled != null) {
+                    _scaled.release();
+                }
+                _scaled = IplImage.create(dst.width(), dst.height(), IPL_DEPTH_8U, src.nChannels());
+            }
+            cvResize(src, _scaled, CV_INTER_NN);
+            src = _scaled;
+        }
+        if(src.nChannels() == 1) {
+            cvCvtColor(src, dst, CV_GRAY2BGR);
+        } else {
+            cvCopy(src, dst);
+        }
+    }
+
+    public synchronized long getReceived() {
+        return _received;
+    }
+
+    public synchronized long getProcessed() {
+        return _processed;
+    }
+
+    public synchronized long getDropped() {
+        return _dropped;
+    }
+
+    /**
+     * Frees the ring's buffers. Only for once neither side will touch the
+     * queue again.
+     */
+    public synchronized void dispose() {
+        for(int i=0;i<SLOTS;++i) {
+            if(_slots[i] != null) {
+                _slots[i].dispose();
+                _slots[i] = null;
+            }
+        }
+        _pending    = -1;
+        _processing = -1;
+        _done       = -1;
+        _doneResult = null;
+        if(_scaled != null) {
+            _scaled.release();
+            _scaled = null;
+        }
+    }
+
+    private int _freeSlot() {
+        for(int i=0;i<SLOTS;++i) {
+            if(i != _pending && i != _processing && i != _done) {
+                return i;
+            }
+        }
+        // Can't happen with four slots and three of them spoken for
+        throw new IllegalStateException("No free frame slot");
+    }
+}
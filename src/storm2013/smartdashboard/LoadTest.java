@@ -0,0 +1,128 @@
+package storm2013.smartdashboard;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds synthetic frames through StormCV at a fixed rate, to find out how
+ * fast a machine can go without a camera attached.
+ *
+ * Frames are due every 1/fps seconds from the start, like a camera's. Each
+ * one's latency is from when it was due to when processImage returned, so
+ * once processing can't keep up the backlog shows up as latency climbing
+ * (and the achieved rate falling short). Making a frame is a copy into a
+ * reused buffer (see SyntheticFrames), so it barely registers.
+ *
+ * A rate is sustainable if 99% of frames finish before the next one is
+ * due. With no rate given, rates from MIN_FPS up are tried in turn until
+ * one isn't, and the highest one that was is reported.
+ * @author Joe
+ */
+public class LoadTest {
+    public static final double MIN_FPS  = 10,
+                               MAX_FPS  = 1000,
+                               FPS_STEP = 1.25;
+
+    private final SyntheticFrames _frames;
+    private final double _seconds;
+    private long _frameIndex;
+
+    /** What happened at one rate. */
+    public static class Step {
+        public double targetFps,
+                      achievedFps;
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        public boolean isSustainable() {
+            return latency.getPercentileMs(0.99) <= 1000/targetFps;
+        }
+    }
+
+    /**
+     * @param seconds how long to run each rate for
+     */
+    public LoadTest(SyntheticFrames frames,double seconds) {
+        _frames  = frames;
+        _seconds = seconds;
+    }
+
+    /** Runs at one rate, on a new StormCV. */
+    public Step run(double fps) throws InterruptedException {
+        StormCV cv = _newPipeline();
+        try {
+            // Let the JIT and the pools settle before anything counts
+            _drive(cv, fps, Math.min(1, _seconds), null);
+            Step step = new Step();
+            step.targetFps = fps;
+            _drive(cv, fps, _seconds, step);
+            return step;
+        } finally {
+            cv.close();
+        }
+    }
+
+    /**
+     * Tries rates from MIN_FPS up by FPS_STEP until one isn't sustainable
+     * (or MAX_FPS is reached), printing each as it goes.
+     * @return every rate tried, in order
+     */
+    public List<Step> sweep() throws InterruptedException {
+        List<Step> steps = new ArrayList<>();
+        for(double fps=MIN_FPS;fps<=MAX_FPS;fps*=FPS_STEP) {
+            Step step = run(fps);
+            steps.add(step);
+            print(step);
+            if(!step.isSustainable()) {
+                break;
+            }
+        }
+        return steps;
+    }
+
+    public static void printHeader() {
+        System.out.println(String.format("%8s %8s %8s %8s %8s %8s  %s", "Target", "Achieved",
+                                         "p50 ms", "p95 ms", "p99 ms", "max ms", "Sustainable"));
+    }
+
+    public static void print(Step step) {
+        LatencyHistogram latency = step.latency;
+        System.out.println(String.format("%8.1f %8.1f %8.3f %8.3f %8.3f %8.3f  %s",
+                                         step.targetFps, step.achievedFps,
+                                         latency.getPercentileMs(0.50), latency.getPercentileMs(0.95),
+                                         latency.getPercentileMs(0.99), latency.getMaxMs(),
+                                         step.isSustainable() ? "yes" : "no"));
+    }
+
+    private StormCV _newPipeline() {
+        StormCV cv = new StormCV();
+        cv._sendResults = false;
+        cv._quiet       = true;
+        cv._initVars();
+        return cv;
+    }
+
+    // Processes frames due every 1/fps seconds for the given time, recording
+    // into step (if it isn't null)
+    private void _drive(StormCV cv,double fps,double seconds,Step step) throws InterruptedException {
+        long period = (long)(1.0e9/fps);
+        long frames = Math.max(1, (long)(seconds*fps));
+        long start  = System.nanoTime();
+        for(long i=0;i<frames;++i) {
+            WPIColorImage frame = _frames.next(_frameIndex++);
+
+            long due  = start + i*period;
+            long wait = due-System.nanoTime();
+            if(wait > 0) {
+                Thread.sleep(wait/1000000, (int)(wait%1000000));
+            }
+            cv.processImage(frame);
+            if(step != null) {
+                step.latency.record(System.nanoTime()-due);
+            }
+        }
+        if(step != null) {
+            step.achievedFps = frames/((System.nanoTime()-start)/1.0e9);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * HSV range threshold done as a single table lookup per pixel.
+ *
+ * The table maps a quantized BGR color straight to its in-range bit, so
+ * there's no color conversion at all while processing a frame. Each color
+ * channel is cut down to a configurable number of bits to keep the table
+ * small enough to stay in cache (6 bits per channel is 2^18 entries, 32 KB).
+ *
+ * Tables are rebuilt on a background thread whenever the bounds change.
+ * Requests that arrive while a rebuild is already waiting are folded into
+ * it, so dragging a slider only costs one rebuild at the end. Finished
+ * tables are swapped in through a volatile reference.
+ * @author Joe
+ */
+public class LookupThreshold {
+    public static final int MIN_BITS = 4,
+                            MAX_BITS = 8;
+
+    // How long to wait for more changes before rebuilding
+    private static final long REBUILD_DELAY_MS = 100;
+
+    private static final ScheduledExecutorService _builder =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StormCV lookup table builder");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+    /**
+     * One built table. Immutable once constructed.
+     */
+    private static class Table {
+        final int h0,h1,s0,s1,v0,v1;
+        final int bits;
+        final long[] inRange;
+
+        Table(int[] request) {
+            h0 = request[0]; h1 = request[1];
+            s0 = request[2]; s1 = request[3];
+            v0 = request[4]; v1 = request[5];
+            bits = request[6];
+
+            int levels = 1 << bits,
+                shift  = 8-bits;
+            // Sample each cell at its center color
+            int half = (shift == 0) ? 0 : 1 << (shift-1);
+
+            inRange = new long[Math.max(1, (levels*levels*levels) >>> 6)];
+            int index = 0;
+            for(int qb=0;qb<levels;++qb) {
+                int b = (qb << shift) | half;
+                for(int qg=0;qg<levels;++qg) {
+                    int g = (qg << shift) | half;
+                    for(int qr=0;qr<levels;++qr,++index) {
+                        int r = (qr << shift) | half;
+                        if(FusedThreshold.inRange(b, g, r, h0, h1, s0, s1, v0, v1)) {
+                            inRange[index >>> 6] |= 1L << index;
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean matches(int h0,int h1,int s0,int s1,int v0,int v1,int bits) {
+            return this.h0 == h0 && this.h1 == h1 &&
+                   this.s0 == s0 && this.s1 == s1 &&
+                   this.v0 == v0 && this.v1 == v1 &&
+                   this.bits == bits;
+        }
+    }
+
+    private volatile Table _table;
+
+    // Latest requested { h0,h1,s0,s1,v0,v1,bits }
+    private final AtomicReference<int[]> _request = new AtomicReference<>();
+    private final AtomicBoolean _rebuildPending = new AtomicBoolean(false);
+
+    private final Runnable _rebuild = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag first so anything requested while building
+            // schedules another pass
+            _rebuildPending.set(false);
+            int[] request = _request.get();
+            Table current = _table;
+            if(current != null && current.matches(request[0], request[1],
+                                                  request[2], request[3],
+                                                  request[4], request[5],
+                                                  request[6])) {
+                return;
+            }
+            _table = new Table(request);
+        }
+    };
+
+    private final ThreadLocal<byte[][]> _rows = new FusedThreshold.RowBuffers();
+
+    /**
+     * Asks for a table with these bounds to be built in the background.
+     * Safe to call on every property change.
+     */
+    public void request(int h0,int h1,int s0,int s1,int v0,int v1,int bits) {
+        bits = Math.max(MIN_BITS, Math.min(MAX_BITS, bits));
+        _request.set(new int[]{ h0,h1,s0,s1,v0,v1,bits });
+        if(_rebuildPending.compareAndSet(false, true)) {
+            _builder.schedule(_rebuild, REBUILD_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Thresholds src (8-bit BGR) into dst (8-bit, 1 channel) with the
+     * current table.
+     * @return false if no table for exactly these bounds is ready yet, in
+     *         which case dst is untouched and the caller should threshold
+     *         some other way.
+     */
+    public boolean apply(IplImage src,IplImage dst,
+                         int h0,int h1,int s0,int s1,int v0,int v1) {
+        return apply(src, dst, 0, 0, src.width(), src.height(), h0, h1, s0, s1, v0, v1);
+    }
+
+    /**
+     * Same as above, but only reads and writes the given rectangle of the
+     * two images (they must be the same size). Several threads can do this
+     * at once, as long as their rectangles don't overlap.
+     */
+    public boolean apply(IplImage src,IplImage dst,
+                         int left,int top,int width,int height,
+                         int h0,int h1,int s0,int s1,int v0,int v1) {
+        Table table = _table;
+        int[] request = _request.get();
+        if(table == null || request == null
+                         || !table.matches(h0, h1, s0, s1, v0, v1, request[6])) {
+            return false;
+        }
+
+        int srcStep = src.widthStep(),
+            dstStep = dst.widthStep();
+
+        byte[][] rows = _rows.get();
+        if(rows[0].length < width*3) {
+            rows[0] = new byte[width*3];
+            rows[1] = new byte[width];
+        }
+        byte[] srcRow = rows[0],
+               dstRow = rows[1];
+
+        long[] inRange = table.inRange;
+        int shift  = 8-table.bits,
+            gShift = table.bits,
+            bShift = table.bits*2;
+
+        ByteBuffer srcBuf = src.getByteBuffer(),
+                   dstBuf = dst.getByteBuffer();
+
+        for(int y=top;y<top+height;++y) {
+            srcBuf.position(y*srcStep + left*3);
+            srcBuf.get(srcRow, 0, width*3);
+
+            for(int x=0,i=0;x<width;++x,i+=3) {
+                int index = (((srcRow[i]   & 0xff) >>> shift) << bShift)
+                          | (((srcRow[i+1] & 0xff) >>> shift) << gShift)
+                          |  ((srcRow[i+2] & 0xff) >>> shift);
+                // Java only uses the low 6 bits of a long shift count
+                dstRow[x] = (byte)-((inRange[index >>> 6] >>> index) & 1);
+            }
+
+            dstBuf.position(y*dstStep + left);
+            dstBuf.put(dstRow, 0, width);
+        }
+        return true;
+    }
+}
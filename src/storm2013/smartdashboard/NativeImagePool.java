@@ -0,0 +1,152 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Native images, handed out by size and freed explicitly rather than by
+ * the finalizers.
+ *
+ * acquire() gives back a released image of the same size, depth and
+ * channels if there is one, and only allocates if there isn't. release()
+ * puts an image back for the next acquire(); trim() frees everything that
+ * isn't checked out (eg. after the frame size changes, when nothing will
+ * ask for the old size again), and close() frees everything, checked out
+ * or not.
+ *
+ * Every byte the pool has allocated and not yet freed counts as live, so
+ * getLiveBytes() is exactly what the pool is holding on to. It should level
+ * off once the frame size settles; if it keeps climbing, something is
+ * acquiring without releasing.
+ *
+ * All of it is synchronized, since stripes acquire scratch from their own
+ * threads.
+ * @author Joe
+ */
+public class NativeImagePool implements AutoCloseable {
+    private final Map<Long,ArrayDeque<IplImage>> _free = new HashMap<>();
+    // Every image the pool allocated that's still allocated, and its size
+    private final Map<IplImage,Integer> _owned = new IdentityHashMap<>();
+    private int _checkedOut;
+
+    private long _liveBytes,
+                 _peakBytes,
+                 _allocations;
+    private boolean _closed;
+
+    /**
+     * An image of the given size, depth and channels, with whatever was
+     * left in it. Hand it back with release().
+     */
+    public synchronized IplImage acquire(int width,int height,int depth,int channels) {
+        if(_closed) {
+            throw new IllegalStateException("Image pool is closed");
+        }
+        ArrayDeque<IplImage> free = _free.get(_key(width, height, depth, channels));
+        IplImage image = (free == null) ? null : free.poll();
+        if(image == null) {
+            image = IplImage.create(width, height, depth, channels);
+            int bytes = image.imageSize();
+            _owned.put(image, bytes);
+            _liveBytes += bytes;
+            _peakBytes = Math.max(_peakBytes, _liveBytes);
+            ++_allocations;
+        }
+        ++_checkedOut;
+        return image;
+    }
+
+    /**
+     * Puts an image from acquire() back. Does nothing for null. Any ROI is
+     * cleared, so the next user gets the whole image.
+     */
+    public synchronized void release(IplImage image) {
+        if(image == null) {
+            return;
+        }
+        if(_closed) {
+            // close() already freed it
+            --_checkedOut;
+            return;
+        }
+        if(!_owned.containsKey(image)) {
+            throw new IllegalArgumentException("Image didn't come from this pool");
+        }
+        --_checkedOut;
+        cvResetImageROI(image);
+        Long key = _key(image.width(), image.height(), image.depth(), image.nChannels());
+        ArrayDeque<IplImage> free = _free.get(key);
+        if(free == null) {
+            free = new ArrayDeque<>();
+            _free.put(key, free);
+        }
+        free.push(image);
+    }
+
+    /** Frees every image that isn't checked out. */
+    public synchronized void trim() {
+        for(ArrayDeque<IplImage> free:_free.values()) {
+            for(IplImage image:free) {
+                _deallocate(image);
+            }
+        }
+        _free.clear();
+    }
+
+    /**
+     * Frees every image, including any that are still checked out (which
+     * mustn't be used after this). The pool can't be used again.
+     */
+    @Override
+    public synchronized void close() {
+        if(_closed) {
+            return;
+        }
+        _closed = true;
+        _free.clear();
+        List<IplImage> owned = new ArrayList<>(_owned.keySet());
+        for(IplImage image:owned) {
+            _deallocate(image);
+        }
+    }
+
+    /** Bytes allocated and not yet freed, checked out or not. */
+    public synchronized long getLiveBytes() {
+        return _liveBytes;
+    }
+
+    /** The most getLiveBytes() has ever been. */
+    public synchronized long getPeakBytes() {
+        return _peakBytes;
+    }
+
+    /** Images acquired and not yet released. */
+    public synchronized int getCheckedOut() {
+        return _checkedOut;
+    }
+
+    /** Images allocated so far, for telling whether a frame allocated. */
+    public synchronized long getAllocations() {
+        return _allocations;
+    }
+
+    private void _deallocate(IplImage image) {
+        Integer bytes = _owned.remove(image);
+        if(bytes != null) {
+            _liveBytes -= bytes;
+            image.deallocate();
+        }
+    }
+
+    // Widths and heights are well under 16384; depth can have IPL_DEPTH_SIGN
+    // (the top bit) set, so it gets the top 32 bits to itself
+    private static Long _key(int width,int height,int depth,int channels) {
+        return ((long)depth << 32) | ((long)(channels & 0xf) << 28) |
+               ((long)(width & 0x3fff) << 14) | (height & 0x3fff);
+    }
+}
@@ -0,0 +1,269 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-pixel work over horizontal stripes of a frame on a fork-join pool.
+ *
+ * Every stripe gets its own set of reusable matrix headers (see view()), so
+ * stripes can run OpenCV functions on their part of a shared image without
+ * touching its ROI. Rectangles handed to view() are relative to the image's
+ * current ROI, which is how StormCV's tracking window carries over.
+ *
+ * Every instance runs its stripes on one pool with a thread per core, so
+ * several cameras striping at once take turns on the cores instead of each
+ * bringing its own threads. The parallelism only decides how many stripes
+ * the work is split into, so it can be changed from propertyChanged at any
+ * time. Scratch images come from the given NativeImagePool; close() hands
+ * them back.
+ * @author Joe
+ */
+public class ParallelStripes implements AutoCloseable {
+    /**
+     * Work for one stripe: rows [top,bottom) of the region being processed.
+     */
+    public interface Stripe {
+        void run(int stripe,int top,int bottom);
+    }
+
+    // Below this many rows a stripe isn't worth handing to another thread
+    private static final int MIN_STRIPE_ROWS = 16;
+
+    // Matrix headers each stripe can have live at once
+    private static final int VIEWS_PER_STRIPE = 9;
+
+    private static ForkJoinPool _pool;
+
+    private volatile int _parallelism;
+    private final NativeImagePool _images;
+
+    private StripeAction[] _actions = new StripeAction[0];
+    private final RecursiveAction _root = new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(_actions);
+        }
+    };
+
+    // Per-stripe scratch for closing, and per-stripe headers for view()
+    private IplImage[] _scratch = new IplImage[0];
+    private CvMat[][]  _views   = new CvMat[0][];
+    private CvRect[]   _rects   = new CvRect[0];
+
+    private class StripeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int index,top,bottom;
+        Stripe task;
+
+        @Override
+        protected void compute() {
+            task.run(index, top, bottom);
+        }
+    }
+
+    public ParallelStripes(int parallelism,NativeImagePool images) {
+        _images = images;
+        setParallelism(parallelism);
+    }
+
+    /**
+     * Sets how many stripes to split work into, at most. 1 (or less) means
+     * everything runs serially on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        _parallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+    /**
+     * How many stripes a region this tall should be split into, given that
+     * each stripe needs halo extra rows above and below it.
+     */
+    public int stripeCount(int height,int halo) {
+        int rows = Math.max(MIN_STRIPE_ROWS, 2*halo);
+        return Math.max(1, Math.min(_parallelism, height/rows));
+    }
+
+    /**
+     * Splits rows [0,height) into the given number of stripes and runs task
+     * on all of them, returning once every stripe is done.
+     */
+    public void run(int height,int stripes,Stripe task) {
+        if(stripes <= 1) {
+            task.run(0, 0, height);
+            return;
+        }
+        _ensureStripes(stripes);
+
+        if(_actions.length != stripes) {
+            _actions = new StripeAction[stripes];
+            for(int i=0;i<stripes;++i) {
+                _actions[i] = new StripeAction();
+            }
+        }
+        for(int i=0;i<stripes;++i) {
+            StripeAction action = _actions[i];
+            action.reinitialize();
+            action.index  = i;
+            action.top    = height*i/stripes;
+            action.bottom = height*(i+1)/stripes;
+            action.task   = task;
+        }
+        _root.reinitialize();
+        _pool().invoke(_root);
+    }
+
+    // The pool every instance shares. Its threads are daemons and it's never
+    // shut down.
+    private static synchronized ForkJoinPool _pool() {
+        if(_pool == null) {
+            _pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return _pool;
+    }
+
+    /**
+     * A header for the given rectangle of image, owned by this stripe. Each
+     * stripe has VIEWS_PER_STRIPE slots; a slot's header is overwritten the
+     * next time that slot is used.
+     */
+    public CvMat view(int stripe,int slot,CvArr image,int x,int y,int width,int height) {
+        CvMat[] views = _views[stripe];
+        if(views[slot] == null) {
+            views[slot] = CvMat.createHeader(1, 1, CV_8UC1);
+        }
+        CvRect rect = _rects[stripe];
+        rect.x(x).y(y).width(width).height(height);
+        return cvGetSubRect(image, views[slot], rect);
+    }
+
+    /**
+     * Morphological close of the top-left width x height of bin (relative to
+     * its ROI), in place. Only that area is read: OpenCV's filters use the
+     * real pixels around an ROI as the border, and StormCV leaves whatever
+     * earlier frames put outside the search region, so OpenCV only ever
+     * gets headers (see view()) that end at the area's edges. That makes the
+     * result the same however many stripes there are, and the same as
+     * JavaMorphology's. Each stripe is closed with enough halo rows that the
+     * stripe edges can't affect the rows it keeps.
+     */
+    public void close(IplImage bin,int width,int height,
+                      IplConvKernel kernel,int iterations) {
+        // A 3x3 kernel reaches one row per iteration, and closing is that
+        // many dilations followed by as many erosions
+        int halo = 2*iterations;
+        int stripes = stripeCount(height, halo);
+        if(stripes <= 1) {
+            _ensureStripes(1);
+            CvMat area = view(0, 0, bin, 0, 0, width, height);
+            cvMorphologyEx(area, area, null, kernel, CV_MOP_CLOSE, iterations);
+            return;
+        }
+        _ensureStripes(stripes);
+
+        _closeBin        = bin;
+        _closeWidth      = width;
+        _closeHeight     = height;
+        _closeKernel     = kernel;
+        _closeIterations = iterations;
+        _closeHalo       = halo;
+
+        // Close each padded stripe into its own scratch image first, since
+        // writing straight back would clobber a neighbour's halo
+        run(height, stripes, _closeStripe);
+        run(height, stripes, _copyBackStripe);
+    }
+
+    // What the current close() is working on, for the two stripe tasks
+    private IplImage _closeBin;
+    private int _closeWidth,_closeHeight;
+    private IplConvKernel _closeKernel;
+    private int _closeIterations,_closeHalo;
+
+    private final Stripe _closeStripe = new Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            int srcTop    = Math.max(0,            top   -_closeHalo),
+                srcBottom = Math.min(_closeHeight, bottom+_closeHalo);
+            IplImage scratch = _scratch(stripe, _closeWidth, srcBottom-srcTop);
+            cvMorphologyEx(view(stripe, 0, _closeBin, 0, srcTop, _closeWidth, srcBottom-srcTop),
+                           view(stripe, 1, scratch,   0, 0,      _closeWidth, srcBottom-srcTop),
+                           null, _closeKernel, CV_MOP_CLOSE, _closeIterations);
+        }
+    };
+
+    private final Stripe _copyBackStripe = new Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            int srcTop = Math.max(0, top-_closeHalo);
+            cvCopy(view(stripe, 1, _scratch[stripe], 0, top-srcTop, _closeWidth, bottom-top),
+                   view(stripe, 0, _closeBin,        0, top,        _closeWidth, bottom-top));
+        }
+    };
+
+    private IplImage _scratch(int stripe,int width,int height) {
+        IplImage scratch = _scratch[stripe];
+        if(scratch == null || scratch.width() < width || scratch.height() < height) {
+            // Taller or wider than before, so the old one won't be asked for
+            // again; trim() gets rid of it
+            _images.release(scratch);
+            scratch = _images.acquire(width, height, IPL_DEPTH_8U, 1);
+            _scratch[stripe] = scratch;
+        }
+        return scratch;
+    }
+
+    /**
+     * Frees the scratch images and headers. A later run() starts over from
+     * scratch.
+     */
+    @Override
+    public void close() {
+        for(int i=0;i<_scratch.length;++i) {
+            _images.release(_scratch[i]);
+            _scratch[i] = null;
+        }
+        for(CvMat[] views:_views) {
+            for(int i=0;i<views.length;++i) {
+                if(views[i] != null) {
+                    views[i].deallocate();
+                    views[i] = null;
+                }
+            }
+        }
+        for(CvRect rect:_rects) {
+            rect.deallocate();
+        }
+        _views = new CvMat[0][];
+        _rects = new CvRect[0];
+        _scratch = new IplImage[0];
+    }
+
+    private void _ensureStripes(int stripes) {
+        if(_views.length >= stripes) {
+            return;
+        }
+        IplImage[] scratch = new IplImage[stripes];
+        CvMat[][]  views   = new CvMat[stripes][];
+        CvRect[]   rects   = new CvRect[stripes];
+        System.arraycopy(_scratch, 0, scratch, 0, _scratch.length);
+        System.arraycopy(_views,   0, views,   0, _views.length);
+        System.arraycopy(_rects,   0, rects,   0, _rects.length);
+        for(int i=_views.length;i<stripes;++i) {
+            views[i] = new CvMat[VIEWS_PER_STRIPE];
+            rects[i] = new CvRect();
+        }
+        _scratch = scratch;
+        _views   = views;
+        _rects   = rects;
+    }
+}
@@ -0,0 +1,181 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import edu.wpi.first.smartdashboard.robot.Robot;
+import edu.wpi.first.wpilibj.tables.ITable;
+import java.awt.Color;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every setting StormCV's processing reads, as of one moment.
+ *
+ * propertyChanged() builds a whole new one and publishes it with a single
+ * volatile write. Each frame picks up whichever one is current when it
+ * starts and uses only that, so a frame never sees half of a change no
+ * matter which thread the change came in on. Nothing in here is modified
+ * after it's built (the arrays and scalars included), and anything derived
+ * from the raw settings is worked out here once rather than every frame.
+ * @author Joe
+ */
+public class PipelineConfig {
+    /** Goes up by one with every change. */
+    public final long version;
+
+    public final double fovx,fovy;
+    public final double[] desiredXAngles,
+                          desiredYAngles;
+    // The desired angles as a fraction of half the FOV (-1 to 1), which is
+    // how the crosshairs and target offsets are measured
+    public final double[] desiredXNormed,
+                          desiredYNormed;
+    private final Map<String,Integer> _distanceIndices;
+
+    public final int h0,h1,
+                     s0,s1,
+                     v0,v1;
+    public final int lookupBits;
+    public final int holeClosingIterations;
+    public final int parallelStripes;
+    public final double polygonApprox;
+    public final double minAreaRatio,
+                        min5ptHeightRatio;
+    public final double min3ptAspectRatio,
+                        max3ptAspectRatio,
+                        min2ptAspectRatio,
+                        max2ptAspectRatio;
+    public final double nearVertSlope;
+
+    public final CvScalar contourScalar3pt,
+                          contourScalar2pt,
+                          gridLineScalar,
+                          lineScalar;
+    public final CvScalar[] crosshairScalars,
+                            contourScalars;   // Indexed like the target classes
+    public final int crosshairSize;
+    public final boolean drawOverlay;
+
+    public final Object process,
+                        select,
+                        threshold,
+                        detector,
+                        backend;
+    public final int detectScale;
+
+    public final boolean trackRegion;
+    public final double trackMargin;
+    public final int trackMaxMisses;
+
+    // Where everything is sent: the top of the table, or this camera's
+    // part of it if it has a namespace
+    public final ITable table;
+    public final double timingPeriod;
+    public final double resultHeartbeat;
+    public final boolean sendTargetKeys;
+
+    public final boolean useTestImage;
+    public final int testImageTargets;
+
+    public final String saveLocation;
+    public final double savePeriod;
+
+    PipelineConfig(StormCV cv,long version) {
+        this.version = version;
+
+        fovx = cv.fovxProperty.getValue();
+        fovy = cv.fovyProperty.getValue();
+
+        desiredXAngles = cv.desiredXAnglesProperty.getValue().clone();
+        desiredYAngles = cv.desiredYAnglesProperty.getValue().clone();
+        desiredXNormed = new double[desiredXAngles.length];
+        for(int i=0;i<desiredXAngles.length;++i) {
+            desiredXNormed[i] = desiredXAngles[i]/(fovx/2);
+        }
+        desiredYNormed = new double[desiredYAngles.length];
+        for(int i=0;i<desiredYAngles.length;++i) {
+            desiredYNormed[i] = desiredYAngles[i]/(fovy/2);
+        }
+
+        Map<String,Integer> distanceIndices = new HashMap<>();
+        String[] keys = cv.distanceKeysProperty.getValue();
+        if(keys != null) {
+            for(int i=0;i<keys.length;++i) {
+                distanceIndices.put(keys[i], i);
+            }
+        }
+        _distanceIndices = Collections.unmodifiableMap(distanceIndices);
+
+        h0 = cv.h0Property.getValue();
+        h1 = cv.h1Property.getValue();
+        s0 = cv.s0Property.getValue();
+        s1 = cv.s1Property.getValue();
+        v0 = cv.v0Property.getValue();
+        v1 = cv.v1Property.getValue();
+
+        lookupBits            = cv.lookupBitsProperty.getValue();
+        holeClosingIterations = cv.holeClosingIterationsProperty.getValue();
+        parallelStripes       = cv.parallelStripesProperty.getValue();
+        polygonApprox         = cv.polygonApproxProperty.getValue();
+
+        minAreaRatio      = cv.minAreaRatioProperty.getValue();
+        min5ptHeightRatio = cv.min5ptHeightRatioProperty.getValue();
+        min3ptAspectRatio = cv.min3ptAspectRatioProperty.getValue();
+        max3ptAspectRatio = cv.max3ptAspectRatioProperty.getValue();
+        min2ptAspectRatio = cv.min2ptAspectRatioProperty.getValue();
+        max2ptAspectRatio = cv.max2ptAspectRatioProperty.getValue();
+
+        nearVertSlope = Math.tan(Math.toRadians(cv.nearVertAngleProperty.getValue()));
+
+        contourScalar3pt = _scalar(cv.contourColor3ptProperty.getValue());
+        contourScalar2pt = _scalar(cv.contourColor2ptProperty.getValue());
+        gridLineScalar   = _scalar(cv.gridLineColorProperty.getValue());
+        lineScalar       = _scalar(cv.lineColorProperty.getValue());
+        crosshairScalars = new CvScalar[] { _scalar(cv.crosshair1ColorProperty.getValue()),
+                                            _scalar(cv.crosshair2ColorProperty.getValue()),
+                                            _scalar(cv.crosshair3ColorProperty.getValue()),
+                                            _scalar(cv.crosshair4ColorProperty.getValue()) };
+        contourScalars   = new CvScalar[] { contourScalar3pt, contourScalar2pt };
+        crosshairSize    = cv.crosshairSizeProperty.getValue();
+        drawOverlay      = cv.drawOverlayProperty.getValue();
+
+        process     = cv.processProperty.getValue();
+        select      = cv.selectProperty.getValue();
+        threshold   = cv.thresholdProperty.getValue();
+        detector    = cv.detectorProperty.getValue();
+        backend     = cv.backendProperty.getValue();
+        detectScale = (Integer)cv.detectScaleProperty.getValue();
+
+        trackRegion    = cv.trackRegionProperty.getValue();
+        trackMargin    = cv.trackMarginProperty.getValue();
+        trackMaxMisses = cv.trackMaxMissesProperty.getValue();
+
+        String namespace = cv.tableNamespaceProperty.getValue();
+        table = (namespace == null || namespace.trim().isEmpty()) ? Robot.getTable()
+                                                                   : Robot.getTable().getSubTable(namespace.trim());
+
+        timingPeriod    = cv.timingPeriodProperty.getValue();
+        resultHeartbeat = cv.resultHeartbeatProperty.getValue();
+        sendTargetKeys  = cv.sendTargetKeysProperty.getValue();
+
+        useTestImage     = cv.useTestImageProperty.getValue();
+        testImageTargets = cv.testImageTargetsProperty.getValue();
+
+        saveLocation = cv.saveLocationProperty.getValue();
+        savePeriod   = cv.savePeriodProperty.getValue();
+    }
+
+    /** Which desired angle goes with a "Distance" key (0 if it's unknown). */
+    public int getDistanceIndex(String key) {
+        Integer index = (key == null) ? null : _distanceIndices.get(key);
+        return (index == null) ? 0 : index;
+    }
+
+    // Same as CV_RGB, but from a Color
+    private static CvScalar _scalar(Color color) {
+        return new CvScalar().val(0, color.getBlue())
+                             .val(1, color.getGreen())
+                             .val(2, color.getRed())
+                             .val(3, 0);
+    }
+}
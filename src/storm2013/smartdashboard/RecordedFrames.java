@@ -0,0 +1,169 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static storm2013.smartdashboard.FrameRecorder.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file written by FrameRecorder, oldest frame first.
+ *
+ * The file is mapped read-only, so frames are copied straight out of the
+ * page cache. A frame that was only half written (the dashboard died in the
+ * middle of it) isn't counted.
+ * @author Joe
+ */
+public class RecordedFrames {
+    private final MappedByteBuffer[] _segments;
+    private final int _slotsPerSegment;
+
+    private final int _width,
+                      _height,
+                      _channels,
+                      _slotCount,
+                      _slotBytes;
+
+    // Sequence numbers of the first frame and one past the last
+    private final long _first,
+                       _end;
+
+    // Where the frame from the last seek() is
+    private ByteBuffer _slot;
+    private int _slotBase;
+    private long _sequence;
+
+    public RecordedFrames(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < HEADER_BYTES) {
+                throw new IOException("\"" + file + "\" is too short to be a recording");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if(header.getLong(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+                throw new IOException("\"" + file + "\" isn't a recording this version can read");
+            }
+            _slotCount = header.getInt(H_SLOTS);
+            _slotBytes = header.getInt(H_SLOTSIZE);
+            _width     = header.getInt(H_WIDTH);
+            _height    = header.getInt(H_HEIGHT);
+            _channels  = header.getInt(H_CHANNELS);
+            long written = header.getLong(H_WRITTEN);
+            if(_slotCount <= 0 || _slotBytes <= SLOT_HEADER_BYTES) {
+                throw new IOException("\"" + file + "\" has a broken header");
+            }
+
+            _slotsPerSegment = Math.max(1, Integer.MAX_VALUE/_slotBytes);
+            int segments = (_slotCount+_slotsPerSegment-1)/_slotsPerSegment;
+            _segments = new MappedByteBuffer[segments];
+            for(int i=0;i<segments;++i) {
+                int slots = Math.min(_slotsPerSegment, _slotCount-i*_slotsPerSegment);
+                _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                           HEADER_BYTES + (long)i*_slotsPerSegment*_slotBytes,
+                                           (long)slots*_slotBytes);
+            }
+
+            // The header is updated after the slot, so a frame may have been
+            // finished that it doesn't know about yet
+            if(written < Long.MAX_VALUE && _slotSequence(written+1) == written+1) {
+                ++written;
+            }
+            _end   = written+1;
+            _first = Math.max(1, _end-_slotCount);
+        }
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getChannels() {
+        return _channels;
+    }
+
+    /** Number of frames in the ring, including any that were half written. */
+    public int size() {
+        return (int)(_end-_first);
+    }
+
+    /**
+     * Moves to frame index (0 is the oldest).
+     * @return false if that frame wasn't completely written
+     */
+    public boolean seek(int index) {
+        long sequence = _first+index;
+        if(index < 0 || sequence >= _end) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + size());
+        }
+        int slot = (int)((sequence-1) % _slotCount);
+        _slot     = _segments[slot/_slotsPerSegment];
+        _slotBase = (slot%_slotsPerSegment)*_slotBytes;
+        _sequence = sequence;
+        return _slot.getLong(_slotBase+S_SEQUENCE) == sequence;
+    }
+
+    /** The current frame's number since recording started (from 1). */
+    public long getSequence() {
+        return _sequence;
+    }
+
+    public long getTimeMillis() {
+        return _slot.getLong(_slotBase+S_TIME);
+    }
+
+    public long getConfigVersion() {
+        return _slot.getLong(_slotBase+S_CONFIG);
+    }
+
+    /** How many target classes have results in the current frame. */
+    public int getResultCount() {
+        return _slot.getInt(_slotBase+S_RESULTS);
+    }
+
+    public boolean getFound(int index) {
+        return _slot.get(_resultOffset(index)) != 0;
+    }
+
+    public double getX(int index) {
+        return _slot.getDouble(_resultOffset(index)+1);
+    }
+
+    public double getY(int index) {
+        return _slot.getDouble(_resultOffset(index)+9);
+    }
+
+    /** Copies the current frame's pixels into image, which must match in size. */
+    public void read(IplImage image) {
+        if(image.width() != _width || image.height() != _height || image.nChannels() != _channels) {
+            throw new IllegalArgumentException("Image is " + image.width() + "x" + image.height() +
+                                               "x" + image.nChannels() + ", recording is " +
+                                               _width + "x" + _height + "x" + _channels);
+        }
+        ByteBuffer dst = image.getByteBuffer();
+        int rowBytes = _width*_channels,
+            step     = image.widthStep(),
+            start    = _slotBase+SLOT_HEADER_BYTES;
+        for(int y=0;y<_height;++y) {
+            _slot.limit(start+(y+1)*rowBytes).position(start+y*rowBytes);
+            dst.position(y*step);
+            dst.put(_slot);
+        }
+        _slot.clear();
+    }
+
+    private int _resultOffset(int index) {
+        return _slotBase+S_RESULT0+index*RESULT_BYTES;
+    }
+
+    private long _slotSequence(long sequence) {
+        int slot = (int)((sequence-1) % _slotCount);
+        return _segments[slot/_slotsPerSegment].getLong((slot%_slotsPerSegment)*_slotBytes+S_SEQUENCE);
+    }
+}
@@ -0,0 +1,116 @@
+package storm2013.smartdashboard;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+
+/**
+ * Sends the per-frame target results to the table as one packed value, and
+ * only when something changed (or a heartbeat is due).
+ *
+ * The packed value goes under RESULTS_KEY as comma separated numbers:
+ *
+ *     sequence,timestamp,found0,x0,y0,found1,x1,y1,...
+ *
+ * sequence counts processed frames (so skipped numbers are frames whose
+ * result didn't change), timestamp is the dashboard's clock in ms, found is
+ * 1 or 0 and x/y are angles in degrees, one triple per target class in the
+ * same order as the key prefixes. Since it's a single value the robot never
+ * sees half of one frame and half of another.
+ *
+ * The old separate "<prefix> Target Found?/X Angle/Y Angle" keys can still
+ * be written alongside for robot code that reads them.
+ * @author Joe
+ */
+public class ResultPublisher {
+    public static final String RESULTS_KEY = "Target Results";
+
+    private final String[] _foundKeys,
+                           _xKeys,
+                           _yKeys;
+
+    private final boolean[] _found,
+                            _sentFound;
+    private final double[]  _x,_y,
+                            _sentX,_sentY;
+
+    private boolean _sentAny;
+    private long _lastFlush;
+
+    private final StringBuilder _packed = new StringBuilder();
+
+    public ResultPublisher(String[] prefixes) {
+        int count = prefixes.length;
+        _foundKeys = new String[count];
+        _xKeys     = new String[count];
+        _yKeys     = new String[count];
+        for(int i=0;i<count;++i) {
+            _foundKeys[i] = prefixes[i] + " Target Found?";
+            _xKeys[i]     = prefixes[i] + " Target X Angle";
+            _yKeys[i]     = prefixes[i] + " Target Y Angle";
+        }
+        _found     = new boolean[count];
+        _sentFound = new boolean[count];
+        _x     = new double[count];
+        _y     = new double[count];
+        _sentX = new double[count];
+        _sentY = new double[count];
+    }
+
+    /** Sets one target class's result for the frame being built. */
+    public void set(int index,boolean found,double x,double y) {
+        _found[index] = found;
+        _x[index]     = found ? x : 0;
+        _y[index]     = found ? y : 0;
+    }
+
+    public boolean isFound(int index) {
+        return _found[index];
+    }
+
+    public double getX(int index) {
+        return _x[index];
+    }
+
+    public double getY(int index) {
+        return _y[index];
+    }
+
+    /**
+     * Sends the results set since the last flush, if they differ from what
+     * was last sent, heartbeatSeconds have passed, or force is set.
+     * @param separateKeys also write the old per-value keys
+     * @return whether anything was sent
+     */
+    public boolean flush(ITable table,long sequence,long timeMillis,
+                         double heartbeatSeconds,boolean separateKeys,boolean force) {
+        boolean changed = !_sentAny;
+        for(int i=0;i<_found.length && !changed;++i) {
+            changed = _found[i] != _sentFound[i] || _x[i] != _sentX[i] || _y[i] != _sentY[i];
+        }
+        if(!changed && !force && timeMillis-_lastFlush < heartbeatSeconds*1000) {
+            return false;
+        }
+
+        _packed.setLength(0);
+        _packed.append(sequence).append(',').append(timeMillis);
+        for(int i=0;i<_found.length;++i) {
+            _packed.append(',').append(_found[i] ? 1 : 0)
+                   .append(',').append(_x[i])
+                   .append(',').append(_y[i]);
+        }
+        table.putString(RESULTS_KEY, _packed.toString());
+
+        for(int i=0;i<_found.length;++i) {
+            if(separateKeys) {
+                table.putBoolean(_foundKeys[i], _found[i]);
+                table.putNumber (_xKeys[i],     _x[i]);
+                table.putNumber (_yKeys[i],     _y[i]);
+            }
+            _sentFound[i] = _found[i];
+            _sentX[i]     = _x[i];
+            _sentY[i]     = _y[i];
+        }
+        _sentAny   = true;
+        _lastFlush = timeMillis;
+        return true;
+    }
+}
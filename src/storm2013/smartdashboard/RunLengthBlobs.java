@@ -0,0 +1,309 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the 8-connected blobs in a binary image in one pass over its rows,
+ * without tracing contours.
+ *
+ * Each row is split into runs of set pixels, and every run is joined
+ * (union-find) with the runs above it that it touches. A second pass over
+ * the runs, not the pixels, adds each one into its blob: area, bounding box,
+ * raw moments up to second order and the four extreme corners.
+ *
+ * The corners are the pixels furthest towards each diagonal (smallest x+y
+ * is top left, largest x-y is top right and so on), which for a convex
+ * quadrilateral like a target is its four vertices. That's what stands in
+ * for the hull and polygon approximation.
+ *
+ * Everything is kept in arrays that only grow, so once they're big enough
+ * for a typical frame nothing is allocated.
+ * @author Joe
+ */
+public class RunLengthBlobs {
+    public static final int TOP_LEFT     = 0,
+                            TOP_RIGHT    = 1,
+                            BOTTOM_RIGHT = 2,
+                            BOTTOM_LEFT  = 3;
+
+    // Runs: row, first and last column (inclusive) and union-find parent
+    private int[] _runY      = new int[256],
+                  _runStart  = new int[256],
+                  _runEnd    = new int[256],
+                  _runParent = new int[256],
+                  _runBlob   = new int[256];
+    private int _runCount;
+
+    // Blobs
+    private int[] _area   = new int[16],
+                  _left   = new int[16],
+                  _top    = new int[16],
+                  _right  = new int[16],
+                  _bottom = new int[16];
+    private long[] _m10 = new long[16],
+                   _m01 = new long[16],
+                   _m20 = new long[16],
+                   _m11 = new long[16],
+                   _m02 = new long[16];
+    private int[] _cornerX     = new int[16*4],
+                  _cornerY     = new int[16*4],
+                  _cornerScore = new int[16*4];
+    private int _blobCount;
+
+    private byte[] _row = new byte[0];
+
+    // getByteBuffer() makes a new buffer each call; the image is usually
+    // the same one frame after frame
+    private IplImage _image;
+    private ByteBuffer _pixels;
+
+    /**
+     * Finds the blobs in the given region of bin (8-bit, 1 channel, any ROI
+     * on it is ignored). Coordinates are relative to the whole image.
+     * @return how many blobs there are
+     */
+    public int extract(IplImage bin,int x,int y,int width,int height) {
+        if(bin != _image) {
+            _image  = bin;
+            _pixels = bin.getByteBuffer();
+        }
+        if(_row.length < width) {
+            _row = new byte[width];
+        }
+        int step = bin.widthStep();
+
+        _runCount = 0;
+        int prevFirst = 0,
+            prevEnd   = 0;
+        for(int row=y;row<y+height;++row) {
+            _pixels.position(row*step+x);
+            _pixels.get(_row, 0, width);
+
+            int first = _runCount;
+            int prev  = prevFirst;
+            int col = 0;
+            while(col < width) {
+                if(_row[col] == 0) {
+                    ++col;
+                    continue;
+                }
+                int start = col;
+                while(col < width && _row[col] != 0) {
+                    ++col;
+                }
+                int end = col-1;
+                int run = _addRun(row, x+start, x+end);
+
+                // Touching (including diagonally) means overlapping once
+                // the previous row's runs are widened by a pixel each way.
+                // Runs entirely left of this one can't touch the next one
+                // either, so they're skipped for good.
+                while(prev < prevEnd && _runEnd[prev] < x+start-1) {
+                    ++prev;
+                }
+                for(int p=prev;p<prevEnd && _runStart[p] <= x+end+1;++p) {
+                    _union(run, p);
+                }
+            }
+            prevFirst = first;
+            prevEnd   = _runCount;
+        }
+
+        _gatherBlobs();
+        return _blobCount;
+    }
+
+    public int getCount() {
+        return _blobCount;
+    }
+
+    public int getArea(int blob) {
+        return _area[blob];
+    }
+
+    public int getLeft(int blob) {
+        return _left[blob];
+    }
+
+    public int getTop(int blob) {
+        return _top[blob];
+    }
+
+    /** Inclusive, like the rest of the coordinates. */
+    public int getRight(int blob) {
+        return _right[blob];
+    }
+
+    /** Inclusive, like the rest of the coordinates. */
+    public int getBottom(int blob) {
+        return _bottom[blob];
+    }
+
+    public double getCentroidX(int blob) {
+        return (double)_m10[blob]/_area[blob];
+    }
+
+    public double getCentroidY(int blob) {
+        return (double)_m01[blob]/_area[blob];
+    }
+
+    /** Raw moments: sum of x^xOrder * y^yOrder over the blob's pixels. */
+    public long getMoment(int blob,int xOrder,int yOrder) {
+        switch(xOrder*3+yOrder) {
+            case 0: return _area[blob];
+            case 3: return _m10[blob];
+            case 1: return _m01[blob];
+            case 6: return _m20[blob];
+            case 4: return _m11[blob];
+            case 2: return _m02[blob];
+            default:
+                throw new IllegalArgumentException("Only moments up to second order are kept");
+        }
+    }
+
+    public int getCornerX(int blob,int corner) {
+        return _cornerX[blob*4+corner];
+    }
+
+    public int getCornerY(int blob,int corner) {
+        return _cornerY[blob*4+corner];
+    }
+
+    private int _addRun(int y,int start,int end) {
+        if(_runCount == _runY.length) {
+            int capacity = 2*_runCount;
+            _runY      = _grow(_runY,      capacity);
+            _runStart  = _grow(_runStart,  capacity);
+            _runEnd    = _grow(_runEnd,    capacity);
+            _runParent = _grow(_runParent, capacity);
+            _runBlob   = _grow(_runBlob,   capacity);
+        }
+        int run = _runCount++;
+        _runY[run]      = y;
+        _runStart[run]  = start;
+        _runEnd[run]    = end;
+        _runParent[run] = run;
+        return run;
+    }
+
+    private int _find(int run) {
+        int root = run;
+        while(_runParent[root] != root) {
+            root = _runParent[root];
+        }
+        // Path compression
+        while(_runParent[run] != root) {
+            int next = _runParent[run];
+            _runParent[run] = root;
+            run = next;
+        }
+        return root;
+    }
+
+    private void _union(int a,int b) {
+        a = _find(a);
+        b = _find(b);
+        // The earlier run stays the root so blobs come out in scan order
+        if(a < b) {
+            _runParent[b] = a;
+        } else if(b < a) {
+            _runParent[a] = b;
+        }
+    }
+
+    private void _gatherBlobs() {
+        _blobCount = 0;
+        for(int run=0;run<_runCount;++run) {
+            int root = _find(run);
+            int blob;
+            if(root == run) {
+                blob = _addBlob();
+            } else {
+                // Roots always come before the rest of their runs
+                blob = _runBlob[root];
+            }
+            _runBlob[run] = blob;
+
+            long y     = _runY[run],
+                 start = _runStart[run],
+                 end   = _runEnd[run];
+            long length = end-start+1;
+            long sumX   = (start+end)*length/2,
+                 sumXX  = _sumOfSquares(end)-_sumOfSquares(start-1);
+
+            _area[blob] += length;
+            _left[blob]   = Math.min(_left[blob],   (int)start);
+            _right[blob]  = Math.max(_right[blob],  (int)end);
+            _top[blob]    = Math.min(_top[blob],    (int)y);
+            _bottom[blob] = Math.max(_bottom[blob], (int)y);
+            _m10[blob] += sumX;
+            _m01[blob] += y*length;
+            _m20[blob] += sumXX;
+            _m11[blob] += y*sumX;
+            _m02[blob] += y*y*length;
+
+            // Scores are all "bigger is further into the corner"
+            _corner(blob, TOP_LEFT,     (int)start, (int)y, (int)(-start-y));
+            _corner(blob, TOP_RIGHT,    (int)end,   (int)y, (int)( end  -y));
+            _corner(blob, BOTTOM_RIGHT, (int)end,   (int)y, (int)( end  +y));
+            _corner(blob, BOTTOM_LEFT,  (int)start, (int)y, (int)(-start+y));
+        }
+    }
+
+    private void _corner(int blob,int corner,int x,int y,int score) {
+        int i = blob*4+corner;
+        if(score > _cornerScore[i]) {
+            _cornerScore[i] = score;
+            _cornerX[i]     = x;
+            _cornerY[i]     = y;
+        }
+    }
+
+    private int _addBlob() {
+        if(_blobCount == _area.length) {
+            int capacity = 2*_blobCount;
+            _area        = _grow(_area,        capacity);
+            _left        = _grow(_left,        capacity);
+            _top         = _grow(_top,         capacity);
+            _right       = _grow(_right,       capacity);
+            _bottom      = _grow(_bottom,      capacity);
+            _m10         = _grow(_m10,         capacity);
+            _m01         = _grow(_m01,         capacity);
+            _m20         = _grow(_m20,         capacity);
+            _m11         = _grow(_m11,         capacity);
+            _m02         = _grow(_m02,         capacity);
+            _cornerX     = _grow(_cornerX,     capacity*4);
+            _cornerY     = _grow(_cornerY,     capacity*4);
+            _cornerScore = _grow(_cornerScore, capacity*4);
+        }
+        int blob = _blobCount++;
+        _area[blob]   = 0;
+        _left[blob]   = Integer.MAX_VALUE;
+        _top[blob]    = Integer.MAX_VALUE;
+        _right[blob]  = Integer.MIN_VALUE;
+        _bottom[blob] = Integer.MIN_VALUE;
+        _m10[blob] = _m01[blob] = _m20[blob] = _m11[blob] = _m02[blob] = 0;
+        for(int corner=0;corner<4;++corner) {
+            _cornerScore[blob*4+corner] = Integer.MIN_VALUE;
+        }
+        return blob;
+    }
+
+    // 0^2 + 1^2 + ... + n^2
+    private static long _sumOfSquares(long n) {
+        return (n < 1) ? 0 : n*(n+1)*(2*n+1)/6;
+    }
+
+    private static int[] _grow(int[] array,int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static long[] _grow(long[] array,int capacity) {
+        long[] grown = new long[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
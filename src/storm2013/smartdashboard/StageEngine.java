@@ -0,0 +1,198 @@
+package storm2013.smartdashboard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a chain of stages over frames, either one frame at a time or
+ * pipelined across two threads.
+ *
+ * Any stage can stop a frame; the stages after it are skipped for that
+ * frame, but the finishing step always runs. When pipelining, the stages
+ * before the split run on the caller's thread and the rest on the engine's
+ * own, so the caller can be starting on one frame while the engine finishes
+ * the one before it. Frames are handed over one at a time: a frame isn't
+ * handed to the engine until it's done with the previous one, which means
+ * at most two frames are in flight and they finish in order.
+ *
+ * Frames have to be separate objects while pipelining (F holds whatever a
+ * frame needs to carry between stages), and anything the stages share
+ * between the two sides has to be safe to use from both at once.
+ * @author Joe
+ */
+public class StageEngine<F> implements AutoCloseable {
+    /** One step of processing a frame. */
+    public interface Stage<F> {
+        /** @return false to stop processing frame after this stage */
+        boolean run(F frame);
+    }
+
+    private final String _name;
+    private final List<Stage<F>> _stages;
+    private final int _split;
+    private final Stage<F> _finish;
+
+    private Thread _thread;
+    // The frame handed to the engine's thread and not finished yet, and the
+    // last one it finished that hasn't been collected
+    private F _handedOff,
+              _finished;
+    private boolean _handedOffStopped,
+                    _closed;
+
+    /**
+     * @param split  how many stages run on the caller's thread when
+     *               pipelining
+     * @param finish run on every frame after its last stage, on whichever
+     *               thread ran that
+     */
+    public StageEngine(String name,List<Stage<F>> stages,int split,Stage<F> finish) {
+        _name   = name;
+        _stages = new ArrayList<>(stages);
+        _split  = split;
+        _finish = finish;
+    }
+
+    /** Runs frame through every stage on this thread. */
+    public void run(F frame) {
+        _run(frame, 0, _stages.size());
+        _finish.run(frame);
+    }
+
+    /**
+     * Runs the stages before the split on frame here, then hands it to the
+     * engine's thread for the rest, once that has finished the frame before
+     * it.
+     * @return the frame before this one, finished, or null if the engine
+     *         had nothing in flight
+     */
+    public F pipeline(F frame) {
+        boolean go = _run(frame, 0, _split);
+        synchronized(this) {
+            if(_closed) {
+                throw new IllegalStateException(_name + " is closed");
+            }
+            if(_thread == null) {
+                _startThread();
+            }
+            F finished = _awaitFinished();
+            _handedOff        = frame;
+            _handedOffStopped = !go;
+            notifyAll();
+            return finished;
+        }
+    }
+
+    /**
+     * Waits for the frame in flight to be finished.
+     * @return it, or null if there wasn't one
+     */
+    public synchronized F drain() {
+        return _awaitFinished();
+    }
+
+    /** Finishes the frame in flight and stops the engine's thread. */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized(this) {
+            _awaitFinished();
+            _closed = true;
+            notifyAll();
+            thread = _thread;
+        }
+        if(thread != null) {
+            boolean interrupted = false;
+            while(thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Runs stages [from,to) on frame until one stops it; false if one did
+    private boolean _run(F frame,int from,int to) {
+        for(int i=from;i<to;++i) {
+            if(!_stages.get(i).run(frame)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Waits (uninterruptibly, since a frame in flight always finishes) for
+    // the engine's thread to be idle, and takes the frame it finished
+    private F _awaitFinished() {
+        boolean interrupted = false;
+        while(_handedOff != null) {
+            try {
+                wait();
+            } catch(InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        F finished = _finished;
+        _finished = null;
+        return finished;
+    }
+
+    private void _startThread() {
+        _thread = new Thread(_name) {
+            @Override
+            public void run() {
+                _work();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void _work() {
+        while(true) {
+            F frame;
+            boolean stopped;
+            synchronized(this) {
+                while(_handedOff == null && !_closed) {
+                    try {
+                        wait();
+                    } catch(InterruptedException ex) {
+                        // Only close() stops this thread
+                    }
+                }
+                if(_handedOff == null) {
+                    return;
+                }
+                frame   = _handedOff;
+                stopped = _handedOffStopped;
+            }
+
+            try {
+                if(!stopped) {
+                    _run(frame, _split, _stages.size());
+                }
+                _finish.run(frame);
+            } catch(RuntimeException ex) {
+                // The frame still has to come out the other end, or the
+                // caller would wait for it forever
+                Logger.getLogger(StageEngine.class.getName()).log(Level.SEVERE, "Failed to process frame", ex);
+            }
+
+            synchronized(this) {
+                _finished  = frame;
+                _handedOff = null;
+                notifyAll();
+            }
+        }
+    }
+}
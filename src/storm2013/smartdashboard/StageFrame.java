@@ -0,0 +1,108 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import edu.wpi.first.wpijavacv.StormCVUtil;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import edu.wpi.first.wpijavacv.WPIImage;
+import java.util.ArrayList;
+
+/**
+ * What one frame carries from each of StormCV's stages to the next.
+ *
+ * Processing a frame at a time uses the same one over and over. When the
+ * stages are pipelined, each frame in flight needs its own: its own copy
+ * of the camera image, its own mask and its own search region. A few of
+ * them take turns, one being thresholded, one being finished off and one
+ * being shown.
+ * @author Joe
+ */
+public class StageFrame {
+    /** The image being processed, which the overlay is drawn on. */
+    public WPIColorImage raw;
+    /** What processImage() hands back for this frame. */
+    public WPIImage result;
+
+    /** The thresholded mask, at detection scale. */
+    public IplImage bin;
+    /** How much the frame was shrunk by for detection. */
+    public int scale = 1;
+
+    // The part of bin being searched (all of it if roiActive is false)
+    public boolean roiActive;
+    public int roiX,roiY,
+               roiWidth,roiHeight;
+    public final CvRect  roiRect   = new CvRect();
+    public final CvPoint roiOffset = new CvPoint(0,0);
+
+    /** Where the selected target should be, from -1 to 1 across the frame. */
+    public final CvPoint2D32f desiredLocNormed = new CvPoint2D32f(0, 0);
+
+    // What detection found. contours is null if the detector went straight
+    // to polygons.
+    public CvSeq contours;
+    public ArrayList<CvSeq> polygons;
+    public boolean anyFound;
+
+    public final StageTimes.Frame times = new StageTimes.Frame();
+    // Allocation counters when the frame started (heap is -1 when it can't
+    // be told apart from other frames)
+    public long heapStart,
+                imageStart;
+
+    private WPIImage _binView;
+    private WPIColorImage _copy;
+
+    /**
+     * A view of bin. It never owns any pixels, and is only rewrapped when
+     * bin is replaced.
+     */
+    public WPIImage binView() {
+        if(_binView == null || StormCVUtil.getIplImage(_binView) != bin) {
+            if(_binView != null) {
+                _binView.dispose();
+            }
+            _binView = StormCVUtil.view(bin);
+        }
+        return _binView;
+    }
+
+    /**
+     * Makes raw a copy of image that belongs to this frame, for when the
+     * frame outlives the caller's image.
+     */
+    public void hold(WPIColorImage image) {
+        if(_copy == null || _copy.getWidth() != image.getWidth() || _copy.getHeight() != image.getHeight()) {
+            if(_copy != null) {
+                _copy.dispose();
+            }
+            _copy = StormCVUtil.createWPIColorImage(image.getWidth(), image.getHeight());
+        }
+        cvCopy(StormCVUtil.getIplImage(image), StormCVUtil.getIplImage(_copy));
+        raw = _copy;
+    }
+
+    /** Gives bin back to images. It's reacquired at the next frame. */
+    public void releaseBin(NativeImagePool images) {
+        if(bin != null) {
+            images.release(bin);
+            bin = null;
+        }
+    }
+
+    /** Frees everything this holds, except bin (see releaseBin()). */
+    public void dispose() {
+        if(_binView != null) {
+            _binView.dispose();
+            _binView = null;
+        }
+        if(_copy != null) {
+            _copy.dispose();
+            _copy = null;
+        }
+        raw = null;
+        result = null;
+        roiRect.deallocate();
+        roiOffset.deallocate();
+        desiredLocNormed.deallocate();
+    }
+}
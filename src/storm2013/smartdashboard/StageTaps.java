@@ -0,0 +1,184 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import com.googlecode.javacv.CanvasFrame;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Debug windows showing intermediate stages of processing, one window per
+ * named stage no matter how many frames go by.
+ *
+ * Each stage has one native buffer and one BufferedImage, both reused for
+ * every frame it shows. The processing thread only copies the stage into
+ * the native buffer; turning that into the BufferedImage and showing it
+ * happen on a display thread. A stage is shown at most maxRate times a
+ * second, and a frame is skipped for a stage whose last one is still being
+ * shown, so watching live video costs processing a copy every so often and
+ * nothing more.
+ *
+ * begin(), commit(), show() and clear() are for the processing thread only.
+ * @author Joe
+ */
+public class StageTaps implements AutoCloseable {
+    private static final class Tap {
+        final String name;
+        IplImage buffer;
+        BufferedImage image;
+        CanvasFrame window;
+        long lastShown;
+        // Set while the display thread owns buffer
+        volatile boolean busy;
+
+        Tap(String name) {
+            this.name = name;
+        }
+    }
+
+    private final NativeImagePool _images;
+    private final Map<String,Tap> _taps = new HashMap<>();
+    private final ExecutorService _display = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "StormCV stage display");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile long _minPeriodNanos;
+
+    public StageTaps(NativeImagePool images,double maxRate) {
+        _images = images;
+        setMaxRate(maxRate);
+    }
+
+    /** How many times a second each stage can be shown (0 for no limit). */
+    public void setMaxRate(double maxRate) {
+        _minPeriodNanos = (maxRate > 0) ? (long)(1.0e9/maxRate) : 0;
+    }
+
+    /**
+     * The buffer to put stage's image into (8-bit, the given size), or null
+     * if it isn't due to be shown yet. Anything non-null has to be passed
+     * to commit().
+     */
+    public IplImage begin(String stage,int width,int height,int channels) {
+        Tap tap = _taps.get(stage);
+        if(tap == null) {
+            tap = new Tap(stage);
+            _taps.put(stage, tap);
+        }
+        long now = System.nanoTime();
+        if(tap.busy || (tap.lastShown != 0 && now-tap.lastShown < _minPeriodNanos)) {
+            return null;
+        }
+        tap.lastShown = now;
+        if(tap.buffer == null || tap.buffer.width() != width || tap.buffer.height() != height ||
+           tap.buffer.nChannels() != channels) {
+            if(tap.buffer != null) {
+                _images.release(tap.buffer);
+            }
+            tap.buffer = _images.acquire(width, height, IPL_DEPTH_8U, channels);
+        }
+        return tap.buffer;
+    }
+
+    /** Shows what was put in the buffer begin() returned for stage. */
+    public void commit(String stage) {
+        final Tap tap = _taps.get(stage);
+        tap.busy = true;
+        _display.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _show(tap);
+                } finally {
+                    tap.busy = false;
+                }
+            }
+        });
+    }
+
+    /** Shows a copy of image (8-bit) for stage, if it's due. */
+    public void show(String stage,IplImage image) {
+        IplImage buffer = begin(stage, image.width(), image.height(), image.nChannels());
+        if(buffer != null) {
+            cvCopy(image, buffer);
+            commit(stage);
+        }
+    }
+
+    /** Closes every window and frees the buffers. Stages can be shown again afterwards. */
+    public void clear() {
+        // Anything still being shown finishes first, so nothing's freed out
+        // from under the display thread
+        try {
+            _display.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException | RejectedExecutionException ex) {
+            // Shut down already, so nothing's running
+        }
+        for(Tap tap:_taps.values()) {
+            if(tap.buffer != null) {
+                _images.release(tap.buffer);
+            }
+            if(tap.window != null) {
+                tap.window.setVisible(false);
+                tap.window.dispose();
+            }
+        }
+        _taps.clear();
+    }
+
+    @Override
+    public void close() {
+        _display.shutdown();
+        try {
+            _display.awaitTermination(1, TimeUnit.SECONDS);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        clear();
+    }
+
+    // On the display thread
+    private static void _show(Tap tap) {
+        IplImage buffer = tap.buffer;
+        int width    = buffer.width(),
+            height   = buffer.height(),
+            channels = buffer.nChannels();
+        int type = (channels == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        if(tap.image == null || tap.image.getWidth() != width || tap.image.getHeight() != height ||
+           tap.image.getType() != type) {
+            tap.image = new BufferedImage(width, height, type);
+        }
+
+        byte[] data = ((DataBufferByte)tap.image.getRaster().getDataBuffer()).getData();
+        ByteBuffer pixels = buffer.getByteBuffer();
+        int rowBytes = width*channels,
+            step     = buffer.widthStep();
+        for(int y=0;y<height;++y) {
+            pixels.limit(y*step+rowBytes).position(y*step);
+            pixels.get(data, y*rowBytes, rowBytes);
+        }
+
+        if(tap.window == null) {
+            tap.window = new CanvasFrame(tap.name);
+        }
+        tap.window.showImage(tap.image);
+    }
+}
@@ -0,0 +1,163 @@
+package storm2013.smartdashboard;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+
+/**
+ * Per-stage timing for the processing pipeline.
+ *
+ * Each frame's times are kept in a Frame that travels with it. The frame
+ * code calls lap() at the end of each stage, which charges the time since
+ * the previous lap to that stage. A stage can be lapped more than once a
+ * frame, and its total for the frame is what gets recorded. Time between a
+ * skip() and the next lap isn't charged to any stage, but still counts
+ * towards the whole frame. When the stages are pipelined a frame is lapped
+ * from one thread and then another, so time spent waiting to be handed
+ * over counts as well; endFrame() can be called from any thread.
+ *
+ * Percentiles, max and frame rate go out to the table every publish period
+ * instead of every frame. Setting "Reset timing" to true in the table (from
+ * the robot or the dashboard) clears everything at the next publish.
+ * @author Joe
+ */
+public class StageTimes {
+    public static final int THRESHOLD = 0,
+                            CLOSE     = 1,
+                            CONTOURS  = 2,
+                            HULL      = 3,
+                            CLASSIFY  = 4,
+                            DRAW      = 5,
+                            PUBLISH   = 6,
+                            FRAME     = 7;
+
+    public static final String[] NAMES = { "Threshold", "Close", "Contours", "Hull",
+                                           "Classify",  "Draw",  "Publish",  "Frame" };
+
+    public static final String RESET_KEY = "Reset timing";
+
+    /** One frame's totals so far. */
+    public static class Frame {
+        private final long[]    _nanos = new long[NAMES.length];
+        private final boolean[] _ran   = new boolean[NAMES.length];
+        private long _start,
+                     _mark;
+
+        public void begin() {
+            _start = System.nanoTime();
+            _mark  = _start;
+            for(int i=0;i<NAMES.length;++i) {
+                _nanos[i] = 0;
+                _ran[i]   = false;
+            }
+        }
+
+        /** Charges the time since the last lap (or skip) to stage. */
+        public void lap(int stage) {
+            long now = System.nanoTime();
+            _nanos[stage] += now-_mark;
+            _ran[stage]    = true;
+            _mark          = now;
+        }
+
+        /** Starts the next lap now, without charging anything. */
+        public void skip() {
+            _mark = System.nanoTime();
+        }
+    }
+
+    private final LatencyHistogram[] _histograms = new LatencyHistogram[NAMES.length];
+    // The last finished frame
+    private final long[]    _frameNanos = new long[NAMES.length];
+    private final boolean[] _ran        = new boolean[NAMES.length];
+
+    // Table keys, built once
+    private final String[] _p50Keys = _keys(" p50 ms"),
+                           _p95Keys = _keys(" p95 ms"),
+                           _p99Keys = _keys(" p99 ms"),
+                           _maxKeys = _keys(" max ms");
+
+    private long _lastFrameNanos;
+
+    private long _periodStart = -1,
+                 _periodFrames;
+
+    public StageTimes() {
+        for(int i=0;i<_histograms.length;++i) {
+            _histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private static String[] _keys(String suffix) {
+        String[] keys = new String[NAMES.length];
+        for(int i=0;i<keys.length;++i) {
+            keys[i] = NAMES[i] + suffix;
+        }
+        return keys;
+    }
+
+    /**
+     * Records frame's stage totals.
+     * @return how long the whole frame took, in ns
+     */
+    public synchronized long endFrame(Frame frame) {
+        long now = System.nanoTime();
+        frame._nanos[FRAME] = now-frame._start;
+        frame._ran[FRAME]   = true;
+        for(int i=0;i<NAMES.length;++i) {
+            _frameNanos[i] = frame._nanos[i];
+            _ran[i]        = frame._ran[i];
+            if(_ran[i]) {
+                _histograms[i].record(_frameNanos[i]);
+            }
+        }
+        ++_periodFrames;
+        if(_periodStart < 0) {
+            _periodStart = frame._start;
+        }
+        _lastFrameNanos = _frameNanos[FRAME];
+        return _lastFrameNanos;
+    }
+
+    /** The given stage's time in the last finished frame (0 if skipped). */
+    public synchronized long getFrameNanos(int stage) {
+        return _ran[stage] ? _frameNanos[stage] : 0;
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return _histograms[stage];
+    }
+
+    /**
+     * Publishes the statistics if at least periodSeconds have passed since
+     * the last time, and handles a pending reset.
+     */
+    public synchronized void publishIfDue(ITable table,double periodSeconds) {
+        long now = System.nanoTime();
+        if(_periodStart < 0 || now-_periodStart < periodSeconds*1e9) {
+            return;
+        }
+
+        for(int i=0;i<NAMES.length;++i) {
+            LatencyHistogram histogram = _histograms[i];
+            table.putNumber(_p50Keys[i], histogram.getPercentileMs(0.50));
+            table.putNumber(_p95Keys[i], histogram.getPercentileMs(0.95));
+            table.putNumber(_p99Keys[i], histogram.getPercentileMs(0.99));
+            table.putNumber(_maxKeys[i], histogram.getMaxMs());
+        }
+        table.putNumber("Frames per second", _periodFrames/((now-_periodStart)/1.0e9));
+        _periodStart  = now;
+        _periodFrames = 0;
+
+        if(table.getBoolean(RESET_KEY, false)) {
+            reset();
+            table.putBoolean(RESET_KEY, false);
+        }
+    }
+
+    public synchronized void reset() {
+        for(LatencyHistogram histogram:_histograms) {
+            histogram.reset();
+        }
+        _periodStart  = -1;
+        _periodFrames = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import java.util.Arrays;
+
+/**
+ * The grid lines and crosshairs drawn over every frame. They only change
+ * with the settings or the frame size, so they're drawn once into a cached
+ * image (and a mask of which pixels they cover) and each frame gets them
+ * with one masked copy instead of a line at a time.
+ *
+ * Lines are drawn without antialiasing, so the copy leaves exactly the same
+ * pixels as drawing them straight onto the frame did.
+ * @author Joe
+ */
+public class StaticOverlay implements AutoCloseable {
+    private static final int _thickness = 2;
+
+    private final NativeImagePool _images;
+    private IplImage _overlay,
+                     _mask;
+
+    // What the cached overlay was drawn for. The config is checked first;
+    // a new config only causes a redraw if something drawn here changed.
+    private PipelineConfig _config;
+    private double[] _desiredX,
+                     _desiredY;
+    private final double[] _colors = new double[3*5];
+    private int _crosshairSize;
+
+    public StaticOverlay(NativeImagePool images) {
+        _images = images;
+    }
+
+    /** Draws the overlay onto frame (8-bit BGR) as config says to. */
+    public void draw(IplImage frame,PipelineConfig config) {
+        if(_overlay == null || _overlay.width() != frame.width() || _overlay.height() != frame.height()) {
+            _release();
+            _overlay = _images.acquire(frame.width(), frame.height(), IPL_DEPTH_8U, 3);
+            _mask    = _images.acquire(frame.width(), frame.height(), IPL_DEPTH_8U, 1);
+            _render(config);
+        } else if(config != _config && _changed(config)) {
+            _render(config);
+        }
+        _config = config;
+        cvCopy(_overlay, frame, _mask);
+    }
+
+    @Override
+    public void close() {
+        _release();
+        _config = null;
+    }
+
+    private void _release() {
+        if(_overlay != null) {
+            _images.release(_overlay);
+            _images.release(_mask);
+            _overlay = _mask = null;
+        }
+    }
+
+    private boolean _changed(PipelineConfig config) {
+        if(config.crosshairSize != _crosshairSize ||
+           !Arrays.equals(config.desiredXNormed, _desiredX) ||
+           !Arrays.equals(config.desiredYNormed, _desiredY)) {
+            return true;
+        }
+        for(int i=0;i<3;++i) {
+            if(config.gridLineScalar.val(i) != _colors[i]) {
+                return true;
+            }
+            for(int c=0;c<config.crosshairScalars.length;++c) {
+                if(config.crosshairScalars[c].val(i) != _colors[3*(c+1)+i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void _render(PipelineConfig config) {
+        _desiredX      = config.desiredXNormed;
+        _desiredY      = config.desiredYNormed;
+        _crosshairSize = config.crosshairSize;
+        for(int i=0;i<3;++i) {
+            _colors[i] = config.gridLineScalar.val(i);
+            for(int c=0;c<config.crosshairScalars.length;++c) {
+                _colors[3*(c+1)+i] = config.crosshairScalars[c].val(i);
+            }
+        }
+
+        cvSetZero(_overlay);
+        cvSetZero(_mask);
+        int width  = _overlay.width(),
+            height = _overlay.height();
+        _line(width/2, 0, width/2, height, config.gridLineScalar);
+        _line(0, height*2/3, width, height*2/3, config.gridLineScalar);
+
+        for(int i=0;i<config.desiredXNormed.length;++i) {
+            double desiredXNormed = config.desiredXNormed[i],
+                   desiredYNormed = config.desiredYNormed[i];
+            if(Math.abs(desiredXNormed) > 1 || Math.abs(desiredYNormed) > 1) {
+                continue;
+            }
+            int desiredX = (int)((desiredXNormed +1)/2*width),
+                desiredY = (int)((-desiredYNormed+1)/2*height);
+            int size = config.crosshairSize;
+            _line(desiredX-size, desiredY, desiredX+size, desiredY, config.crosshairScalars[i]);
+            _line(desiredX, desiredY-size, desiredX, desiredY+size, config.crosshairScalars[i]);
+        }
+    }
+
+    // Draws a line on the overlay and marks it in the mask
+    private void _line(int x0,int y0,int x1,int y1,CvScalar color) {
+        CvPoint from = new CvPoint(x0, y0),
+                to   = new CvPoint(x1, y1);
+        cvLine(_overlay, from, to, color,            _thickness, 8, 0);
+        cvLine(_mask,    from, to, cvScalarAll(255), _thickness, 8, 0);
+        from.deallocate();
+        to.deallocate();
+    }
+}
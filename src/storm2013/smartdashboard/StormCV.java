@@ -1,7 +1,7 @@
 package storm2013.smartdashboard;
 
+import com.googlecode.javacpp.Loader;
 import com.googlecode.javacpp.Pointer;
-import com.googlecode.javacv.CanvasFrame;
 import static com.googlecode.javacv.cpp.opencv_core.*;
 import static com.googlecode.javacv.cpp.opencv_imgproc.*;
 import edu.wpi.first.smartdashboard.camera.WPICameraExtension;
@@ -11,16 +11,16 @@ import edu.wpi.first.smartdashboard.robot.Robot;
 import edu.wpi.first.wpijavacv.StormCVUtil;
 import edu.wpi.first.wpijavacv.WPIColorImage;
 import edu.wpi.first.wpijavacv.WPIImage;
-import edu.wpi.first.wpilibj.tables.ITable;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -38,7 +38,7 @@ import javax.imageio.ImageIO;
  * @author Joe
  */
 //public class StormCV extends WPILaptopCameraExtension {
-public class StormCV extends WPICameraExtension {
+public class StormCV extends WPICameraExtension implements AutoCloseable {
     public static final String NAME = "StormCV Target Tracker";
     
     // Dummy objects representing steps of the process (for processProperty)
@@ -53,8 +53,19 @@ public class StormCV extends WPICameraExtension {
     
     private static final Object _select_biggest     = new Object(),
                                 _select_closest     = new Object();
-        
-    private static final ITable outputTable = Robot.getTable();
+    
+    private static final Object _threshold_split    = new Object(),
+                                _threshold_fused    = new Object(),
+                                _threshold_lookup   = new Object();
+    
+    private static final Object _detect_contours    = new Object(),
+                                _detect_runs        = new Object();
+    
+    private static final Object _backend_opencv     = new Object(),
+                                _backend_java       = new Object();
+    // What backendProperty starts out as; --backend changes it for every
+    // StormCV the command line tools create
+    private static String _defaultBackend = "OpenCV";
     
     // Having aspects of the process editable as properties allows for quick
     // and easy tuning and testing.
@@ -80,9 +91,18 @@ public class StormCV extends WPICameraExtension {
         v0Property = new IntegerProperty(this, "Low Value threshold",      60),
         v1Property = new IntegerProperty(this, "High Value threshold",     255);
         
+    public final IntegerProperty
+        lookupBitsProperty = new IntegerProperty(this, "Lookup table bits per channel", 6);
+    
     public final IntegerProperty
         holeClosingIterationsProperty = new IntegerProperty(this, "Hole Closing Iterations",2);
     
+    // How many stripes to split thresholding and closing into. The stripes
+    // run on one pool with a thread per core, shared by every camera; the
+    // name is from before that, and is kept so saved layouts still load.
+    public final IntegerProperty
+        parallelStripesProperty = new IntegerProperty(this, "Threshold/close threads", 1);
+    
     public final DoubleProperty
         polygonApproxProperty = new DoubleProperty(this, "Polygon approximation parameter",10);
     
@@ -110,13 +130,64 @@ public class StormCV extends WPICameraExtension {
     
     public final IntegerProperty
         crosshairSizeProperty = new IntegerProperty(this, "Crosshair size",10);
+    
+    // Off skips all drawing (grid, crosshairs, targets), for when nobody is
+    // watching the video and the results only go to the robot
+    public final BooleanProperty
+        drawOverlayProperty = new BooleanProperty(this, "Draw overlay", true);
         
     public final MultiProperty
-        processProperty = new MultiProperty(this, "Process until?"),
-        selectProperty  = new MultiProperty(this, "Select for?");
+        processProperty   = new MultiProperty(this, "Process until?"),
+        selectProperty    = new MultiProperty(this, "Select for?"),
+        thresholdProperty = new MultiProperty(this, "Threshold method?"),
+        detectScaleProperty = new MultiProperty(this, "Detection scale?"),
+        detectorProperty    = new MultiProperty(this, "Shape detector?"),
+        backendProperty     = new MultiProperty(this, "Pixel backend?");
+    
+    public final BooleanProperty
+        trackRegionProperty    = new BooleanProperty(this, "Track target region", false);
+    public final DoubleProperty
+        trackMarginProperty    = new DoubleProperty(this, "Tracking region margin", 0.5);
+    public final IntegerProperty
+        trackMaxMissesProperty = new IntegerProperty(this, "Tracking misses before full search", 5);
+    
+    public final BooleanProperty
+        asyncProcessingProperty = new BooleanProperty(this, "Process asynchronously", false);
+    // Thresholds the next frame while the last one is still being
+    // classified. Off while recording or showing stages.
+    public final BooleanProperty
+        pipelineStagesProperty  = new BooleanProperty(this, "Pipeline stages", false);
+    // The workers are shared by every StormCV on the dashboard, which get as
+    // many as the highest of their settings
+    public final IntegerProperty
+        sharedWorkersProperty   = new IntegerProperty(this, "Shared worker threads", 2);
+    
+    // Blank sends everything to the top of the table, like a single camera
+    // always has. With more than one camera, give each its own.
+    public final StringProperty
+        tableNamespaceProperty  = new StringProperty(this, "Table namespace", "");
+    
+    // Sends frames to a VisionServer (host:port) and publishes what it sends
+    // back, instead of processing them here. Blank processes locally.
+    public final StringProperty
+        offloadServerProperty   = new StringProperty(this, "Offload server (host:port)", "");
+    public final BooleanProperty
+        offloadJpegProperty     = new BooleanProperty(this, "Offload as JPEG", true);
+    public final IntegerProperty
+        offloadInFlightProperty = new IntegerProperty(this, "Offload frames in flight", 2);
+    
+    public final DoubleProperty
+        resultHeartbeatProperty = new DoubleProperty(this, "Result heartbeat (s)", 0.5);
+    public final BooleanProperty
+        sendTargetKeysProperty  = new BooleanProperty(this, "Send separate target keys", true);
+    
+    public final DoubleProperty
+        timingPeriodProperty = new DoubleProperty(this, "Timing publish period (s)", 1);
     
     public final BooleanProperty
         useTestImageProperty = new BooleanProperty(this, "Use Test Image",false);
+    public final IntegerProperty
+        testImageTargetsProperty = new IntegerProperty(this, "Test image targets", 2);
     
     public final DoubleProperty
         savePeriodProperty = new DoubleProperty(this,"Save period (s)",1);
@@ -124,85 +195,223 @@ public class StormCV extends WPICameraExtension {
     public final StringProperty
         saveLocationProperty = new StringProperty(this, "Save location",System.getenv("USERPROFILE") + "/Captures");
     
+    public final DoubleProperty
+        saveQualityProperty = new DoubleProperty(this, "Save JPEG quality (0-1)", 0.9);
+    
+    public final BooleanProperty
+        saveReplaceOldestProperty = new BooleanProperty(this, "Save replaces oldest when behind", false);
+    
+    public final BooleanProperty
+        recordProperty     = new BooleanProperty(this, "Record all frames", false);
+    public final StringProperty
+        recordFileProperty = new StringProperty(this, "Record file", System.getenv("USERPROFILE") + "/Captures/frames.rec");
+    // The whole file is mapped into memory. The dashboard runs in a 32-bit
+    // JVM, which can't find much more than a few hundred MB of contiguous
+    // address space, so keep this well under 1 GB there.
+    public final IntegerProperty
+        recordSizeProperty = new IntegerProperty(this, "Record size (MB)", 256);
+    
     
-    // Store these and update them in propertyChanged() because getValue()
-    // has too much overhead to be called every time.
-    private double _fovx,_fovy;
-    private double[] _desiredXAngles,
-                     _desiredYAngles;
-    private final Map<String,Integer> _distanceIndices = new HashMap<>();
-    private int _h0,_h1,
-                _s0,_s1,
-                _v0,_v1;
-    private int _holeClosingIterations;
-    private double _polygonApprox;
-    private double _minAreaRatio,
-                   _min5ptHeightRatio;
-    private double _min3ptAspectRatio,
-                   _max3ptAspectRatio,
-                   _min2ptAspectRatio,
-                   _max2ptAspectRatio;
-    private Color _contourColor3pt,
-                  _contourColor2pt,
-                  _gridLineColor,
-                  _lineColor;
-    private Color[] _crosshairColor = new Color[4];
-    private int _crosshairSize;
-    private double _nearVertSlope;
-    private Object _process,
-                   _select;
-    private boolean _useTestImage;
-    private String _saveLocation;
-    private double _savePeriod;
+    // The settings, republished as a whole by propertyChanged() because
+    // getValue() has too much overhead to be called every time. _config is
+    // the copy the current frame took at its start; only it is used while
+    // processing, so a frame never mixes old and new settings. A pipelined
+    // frame still in flight is finished before _config changes, so both
+    // ends of the pipeline always agree on it.
+    private volatile PipelineConfig _published;
+    PipelineConfig _config;
+    private long _configVersion;
+    private volatile boolean _asyncProcessing,
+                             _pipelining;
     private long _prevSaveTime;
     
-    CvPoint2D32f _desiredLocNormed;
+    // Writes saved frames on its own thread, so a slow disk only ever costs
+    // saved frames, never processed ones
+    private final CaptureWriter _captures = new CaptureWriter();
+    
+    // Full-rate recording. The recorder is only touched from the processing
+    // thread; property changes just ask for it to be replaced.
+    private volatile boolean _recording;
+    private volatile boolean _recorderStale = true;
+    private String _recordFile;
+    private long _recordBytes;
+    private FrameRecorder _recorder;
+    private boolean _recorderLost;
     
-    // This holds the image returned from processImage() (if the selected
-    // processing mode replaces the rawImage instead of drawing on top of
-    // it). It prevents SmartDashboard from crashing without any indication 
-    // whatsoever.
-    private WPIImage _ret;
+    // Offloading. Same deal as the recorder: the client is only touched from
+    // the camera thread (and close()), property changes just ask for it to
+    // be replaced, and a server that can't be reached is retried every
+    // _offloadRetryMillis rather than every frame.
+    private static final long _offloadRetryMillis = 2000;
+    private static final int _offloadTimeoutMillis = 1000;
+    private volatile String _offloadServer = "";
+    private volatile boolean _offloadJpeg,
+                             _offloadStale = true,
+                             _offloadLost;
+    private volatile int _offloadInFlight;
+    private volatile VisionClient _offloadClient;
+    private long _offloadRetryTime;
     
-    // Keep temporaries around so they aren't constantly being reallocated
-    private CvSize   _size;
+    // Padding (in pixels) added around a tracked target on top of the
+    // margin, so tiny targets still get a usable search window
+    private static final int _minTrackPadding = 8;
+    
+    // Target region tracking. Once a target is selected only the window
+    // around it is searched, until trackMaxMisses frames in a row come up
+    // empty. When pipelining, the next frame's window is picked while the
+    // last frame is still being classified (so it's a frame behind), which
+    // is why these are only touched under _trackLock.
+    private final Object _trackLock = new Object();
+    private boolean _trackValid;
+    private int _trackMisses;
+    private int _trackLeft, _trackTop,
+                _trackRight,_trackBottom;
+    
+    // Keep temporaries around so they aren't constantly being reallocated.
+    // The images all come from (and go back to) _images; close() frees the
+    // lot.
+    private final NativeImagePool _images = new NativeImagePool();
+    
+    // The grid lines and crosshairs, drawn once per settings or frame size
+    // change rather than every frame
+    private final StaticOverlay _overlay = new StaticOverlay(_images);
+    
+    // The --show windows, one per stage, refreshed at most this often
+    static final double DEFAULT_STAGE_RATE = 5;
+    final StageTaps _taps = new StageTaps(_images, DEFAULT_STAGE_RATE);
+    // Detection size. The pipeline is empty whenever this changes.
+    private int _detectWidth,
+                _detectHeight;
     private IplImage _hsv;
-    private IplImage _bin;
+    private IplImage _small;     // Downscaled frame for coarse detection
+    private IplImage _refineBin; // Full size mask, only filled in around corners
     private IplImage _hueLow, _hueHigh;
     private IplImage _satLow, _satHigh;
     private IplImage _valLow, _valHigh;
-    private IplConvKernel _morphology = IplConvKernel.create(3, 3, 1, 1, CV_SHAPE_RECT, null);;
-    private CvMemStorage _storage;
+    private final IplConvKernel _morphology = IplConvKernel.create(3, 3, 1, 1, CV_SHAPE_RECT, null);
+    CvMemStorage _storage;
+    private final FusedThreshold _fusedThreshold = new FusedThreshold();
+    private final LookupThreshold _lookupThreshold = new LookupThreshold();
+    private final ParallelStripes _stripes = new ParallelStripes(1, _images);
+    private final JavaMorphology _javaMorphology = new JavaMorphology(_stripes);
     
-    private WPIColorImage _loadedImage,
-                          _processImage;
-            
-    private boolean  _sendResults         = true,
-                     _displayIntermediate = false;
+    // Native scratch objects, so steady-state frames allocate nothing
+    private final FramePool _pool = new FramePool();
+    final StageTimes _stageTimes = new StageTimes();
+    
+    // What each target class came out as this frame, sent in one go at the
+    // end so publishing can be timed on its own
+    private final boolean[] _resultFound = new boolean[2];
+    private final double[]  _resultX     = new double[2],
+                            _resultY     = new double[2];
+    private final CvSeq _contours = new CvSeq();
+    private final RunLengthBlobs _blobs = new RunLengthBlobs();
+    private static final int _polygonHeaderSize = Loader.sizeof(CvContour.class),
+                             _pointSize         = Loader.sizeof(CvPoint.class);
+    private final ArrayList<CvSeq> _polygons = new ArrayList<>();
+    private final int[] _selectedIndices = new int[2];
+    // Where each selected target's center is, in frame pixels
+    private final double[] _targetX = new double[2],
+                           _targetY = new double[2];
+    private final double[] _largestAreas      = new double[2],
+                           _smallestDistances = new double[2];
+    private final IplImage[] _splitImages = new IplImage[8];
+    private int _rectX,_rectY,
+                _rectWidth,_rectHeight;
+    
+    // How many contours each step of the selection cascade threw out this
+    // frame. The steps are in the order they run, cheapest first.
+    private static final int REJECT_AREA     = 0,   // Bounding rect too small
+                             REJECT_VERTICES = 1,   // Not a quadrilateral after approxPoly
+                             REJECT_ASPECT   = 2;   // Matches neither target's aspect ratio
+    private static final String[] _rejectionKeys = { "Contours rejected by area",
+                                                     "Contours rejected by vertex count",
+                                                     "Contours rejected by aspect ratio" };
+    private final int[] _rejections = new int[_rejectionKeys.length];
+    private int _contourCount;
+    
+    // Edges of a quadrilateral, sorted by _aspectRatio
+    private final double[] _horizDx = new double[4], _horizDy = new double[4],
+                           _vertDx  = new double[4], _vertDy  = new double[4];
     
-    private void _updateDistanceIndices() {
-        _distanceIndices.clear();
-        String[] values = distanceKeysProperty.getValue();
-        if(values != null) {
-            for(int i=0;i<values.length;++i) {
-                _distanceIndices.put(values[i], i);
+    // Set for the stripes to pick up in _doThreshold
+    private StageFrame _thresholdFrame;
+    private IplImage _thresholdImage;
+    private final ParallelStripes.Stripe _pixelThresholdStripe = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            _doPixelThreshold(_thresholdFrame, _thresholdImage, _thresholdFrame.roiY+top, bottom-top);
+        }
+    };
+    private final ParallelStripes.Stripe _splitThresholdStripe = new ParallelStripes.Stripe() {
+        @Override
+        public void run(int stripe,int top,int bottom) {
+            // Same steps, but each stripe works through its own headers onto
+            // its rows of every image
+            int height = bottom-top,
+                width  = _thresholdFrame.roiWidth;
+            _splitThreshold(_stripes.view(stripe, 0, _thresholdImage, 0, top, width, height),
+                            _stripes.view(stripe, 1, _hsv,     0, top, width, height),
+                            _stripes.view(stripe, 2, _hueLow,  0, top, width, height),
+                            _stripes.view(stripe, 3, _hueHigh, 0, top, width, height),
+                            _stripes.view(stripe, 4, _satLow,  0, top, width, height),
+                            _stripes.view(stripe, 5, _satHigh, 0, top, width, height),
+                            _stripes.view(stripe, 6, _valLow,  0, top, width, height),
+                            _stripes.view(stripe, 7, _valHigh, 0, top, width, height),
+                            _stripes.view(stripe, 8, _thresholdFrame.bin, 0, top, width, height));
+        }
+    };
+    
+    // Stands in for the camera when "Use Test Image" is on, at the camera's
+    // resolution
+    private SyntheticFrames _testFrames;
+    private long _testFrameIndex;
+    
+    // For asynchronous processing: the camera thread drops frames in here,
+    // and whichever shared worker gets to this camera next processes the
+    // newest one
+    private final LatestFrameQueue _frameQueue = new LatestFrameQueue();
+    // Whether the last frame went to the workers (camera thread only)
+    private boolean _wasAsync;
+    private final CameraScheduler.Camera _camera = new CameraScheduler.Camera() {
+        @Override
+        public void runOnce() {
+            WPIColorImage frame = _frameQueue.poll();
+            if(frame == null) {
+                return;
+            }
+            WPIImage result = frame;
+            try {
+                result = _processFrame(frame);
+            } catch (RuntimeException ex) {
+                // Don't let one bad frame stop this camera
+                Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Failed to process frame", ex);
             }
+            _frameQueue.finish(result);
+            _sendQueueStats();
         }
+        
+        @Override
+        public boolean hasWork() {
+            return _frameQueue.hasPending();
+        }
+    };
+            
+    // The stages of _processFrame (and these) are package-private so the
+    // benchmarks in bench/ can run them one at a time
+    boolean _sendResults         = true,
+            _displayIntermediate = false,
+            _quiet               = false;   // No console output either
+    
+    private boolean _printing() {
+        return !_sendResults && !_quiet;
     }
     
     private int _getDistanceIndex() {
-        String key = Robot.getTable().getString("Distance",null);
-        if(key == null) {
-            return 0;
-        }
-        Integer ret = _distanceIndices.get(key);
-        if(ret == null) {
-            return 0;
-        }
-        return ret;
+        return _config.getDistanceIndex(Robot.getTable().getString("Distance",null));
     }
 
-    private void _initVars() {
+    void _initVars() {
         processProperty.add("Nothing",           _process_nothing);
         processProperty.add("Apply Threshold",   _process_threshold);
         processProperty.add("Close Holes",       _process_closeHoles);
@@ -219,59 +428,65 @@ public class StormCV extends WPICameraExtension {
         
         selectProperty.setDefault("Closest");
         
-        _fovx = fovxProperty.getValue();
-        _fovy = fovyProperty.getValue();
+        thresholdProperty.add("Split channels", _threshold_split);
+        thresholdProperty.add("Fused in-range", _threshold_fused);
+        thresholdProperty.add("Lookup table",   _threshold_lookup);
         
-        _desiredXAngles = desiredXAnglesProperty.getValue();
-        _desiredYAngles = desiredYAnglesProperty.getValue();
+        thresholdProperty.setDefault("Split channels");
         
-        _h0 = h0Property.getValue();
-        _h1 = h1Property.getValue();
-        _s0 = s0Property.getValue();
-        _s1 = s1Property.getValue();
-        _v0 = v0Property.getValue();
-        _v1 = v1Property.getValue();
+        detectScaleProperty.add("Full", 1);
+        detectScaleProperty.add("1/2",  2);
+        detectScaleProperty.add("1/4",  4);
         
-        _holeClosingIterations = holeClosingIterationsProperty.getValue();
+        detectScaleProperty.setDefault("Full");
         
-        _polygonApprox = polygonApproxProperty.getValue();
+        detectorProperty.add("Contours and hulls", _detect_contours);
+        detectorProperty.add("Run-length blobs",   _detect_runs);
         
-        _minAreaRatio = minAreaRatioProperty.getValue();
+        detectorProperty.setDefault("Contours and hulls");
         
-        _min3ptAspectRatio = min3ptAspectRatioProperty.getValue();
-        _max3ptAspectRatio = max3ptAspectRatioProperty.getValue();
-        _min2ptAspectRatio = min2ptAspectRatioProperty.getValue();
-        _max2ptAspectRatio = max2ptAspectRatioProperty.getValue();
+        // Pure Java thresholds (whichever threshold method is picked; split
+        // channels becomes fused) and hole closing, for the same masks
+        // without going through OpenCV for the pixel work
+        backendProperty.add("OpenCV",    _backend_opencv);
+        backendProperty.add("Pure Java", _backend_java);
         
-        _nearVertSlope = Math.tan(Math.toRadians(nearVertAngleProperty.getValue()));
-
-        _contourColor3pt = contourColor3ptProperty.getValue();
-        _contourColor2pt = contourColor2ptProperty.getValue();
-        _gridLineColor = gridLineColorProperty.getValue();
-        _lineColor = lineColorProperty.getValue();
-        _crosshairColor[0] = crosshair1ColorProperty.getValue();
-        _crosshairColor[1] = crosshair2ColorProperty.getValue();
-        _crosshairColor[2] = crosshair3ColorProperty.getValue();
-        _crosshairColor[3] = crosshair4ColorProperty.getValue();
-        
-        _crosshairSize = crosshairSizeProperty.getValue();
+        backendProperty.setDefault(_defaultBackend);
         
-        _process = processProperty.getValue();
-        _select  = selectProperty.getValue();
+        _publishConfig();
+        _config = _published;
         
-        try {
-            _loadedImage = new WPIColorImage(ImageIO.read(new File("test.jpg")));
-        } catch (IOException ex) {
-            ex.printStackTrace();
-//            Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        _asyncProcessing = asyncProcessingProperty.getValue();
+        _pipelining      = pipelineStagesProperty.getValue();
+        CameraScheduler.shared().setThreads(_camera, sharedWorkersProperty.getValue());
         
-        _saveLocation = saveLocationProperty.getValue();
-        _savePeriod = savePeriodProperty.getValue();
+        _captures.setQuality(saveQualityProperty.getValue().floatValue());
+        _captures.setReplaceOldest(saveReplaceOldestProperty.getValue());
         
         _prevSaveTime = -1;
         
-        _updateDistanceIndices();
+        _recording   = recordProperty.getValue();
+        _recordFile  = recordFileProperty.getValue();
+        _recordBytes = recordSizeProperty.getValue()*1024L*1024L;
+        
+        _offloadServer   = offloadServerProperty.getValue().trim();
+        _offloadJpeg     = offloadJpegProperty.getValue();
+        _offloadInFlight = offloadInFlightProperty.getValue();
+    }
+    
+    /**
+     * Builds a new snapshot of the settings and makes it the one the next
+     * frame will use.
+     */
+    private synchronized void _publishConfig() {
+        PipelineConfig config = new PipelineConfig(this, ++_configVersion);
+        _published = config;
+        
+        // Only bother building tables if they're going to be used
+        if(config.threshold == _threshold_lookup) {
+            _lookupThreshold.request(config.h0, config.h1, config.s0, config.s1,
+                                     config.v0, config.v1, config.lookupBits);
+        }
     }
     
     @Override
@@ -283,90 +498,68 @@ public class StormCV extends WPICameraExtension {
         for(int i=0;i<prefixes.length;++i) {
             _sendData(i, false, 0, 0);
         }
+        _flushResults(true);
     }
 
     @Override
-    public void propertyChanged(Property property) {        
-        if(property == fovxProperty) {
-            _fovx = fovxProperty.getValue();
-        } else if(property == fovyProperty) {
-            _fovy = fovyProperty.getValue();
-        } else if(property == desiredXAnglesProperty) {
-            _desiredXAngles = desiredXAnglesProperty.getValue();
-        } else if(property == desiredYAnglesProperty) {
-            _desiredYAngles = desiredYAnglesProperty.getValue();
-        } else if(property == distanceKeysProperty) {
-            _updateDistanceIndices();
-        } else if(property == h0Property) {
-            _h0 = h0Property.getValue();
-        } else if(property == h1Property) {
-            _h1 = h1Property.getValue();
-        } else if(property == s0Property) {
-            _s0 = s0Property.getValue();
-        } else if(property == s1Property) {
-            _s1 = s1Property.getValue();
-        } else if(property == v0Property) {
-            _v0 = v0Property.getValue();
-        } else if(property == v1Property) {
-            _v1 = v1Property.getValue();
-        } else if(property == holeClosingIterationsProperty) {
-            _holeClosingIterations = holeClosingIterationsProperty.getValue();
-        } else if(property == polygonApproxProperty) {
-            _polygonApprox = polygonApproxProperty.getValue();
-        } else if(property == nearVertAngleProperty) {
-            _nearVertSlope = Math.tan(Math.toRadians(nearVertAngleProperty.getValue()));
-        } else if(property == minAreaRatioProperty) {
-            _minAreaRatio = minAreaRatioProperty.getValue();
-        } else if(property == min5ptHeightRatioProperty) {
-            _min5ptHeightRatio = min5ptHeightRatioProperty.getValue();
-        } else if(property == min3ptAspectRatioProperty) {
-            _min3ptAspectRatio = min3ptAspectRatioProperty.getValue();
-        } else if(property == max3ptAspectRatioProperty) {
-            _max3ptAspectRatio = max3ptAspectRatioProperty.getValue();
-        } else if(property == min2ptAspectRatioProperty) {
-            _min2ptAspectRatio = min2ptAspectRatioProperty.getValue();
-        } else if(property == max2ptAspectRatioProperty) {
-            _max2ptAspectRatio = max2ptAspectRatioProperty.getValue();
-        } else if(property == useTestImageProperty) {
-            _useTestImage = useTestImageProperty.getValue();
-        } else if(property == contourColor3ptProperty) {
-            _contourColor3pt = contourColor3ptProperty.getValue();
-        } else if(property == contourColor2ptProperty) {
-            _contourColor2pt = contourColor2ptProperty.getValue();
-        } else if(property == lineColorProperty) {
-            _lineColor = lineColorProperty.getValue();
-        } else if(property == crosshair1ColorProperty) {
-            _crosshairColor[0] = crosshair1ColorProperty.getValue();
-        } else if(property == crosshair2ColorProperty) {
-            _crosshairColor[1] = crosshair2ColorProperty.getValue();
-        } else if(property == crosshair3ColorProperty) {
-            _crosshairColor[2] = crosshair3ColorProperty.getValue();
-        } else if(property == crosshair4ColorProperty) {
-            _crosshairColor[3] = crosshair4ColorProperty.getValue();
-        } else if(property == crosshairSizeProperty) {
-            _crosshairSize = crosshairSizeProperty.getValue();
-        } else if(property == processProperty) {
-            _process = processProperty.getValue();
-        } else if(property == selectProperty) {
-            _select = selectProperty.getValue();
-        } else if(property == savePeriodProperty) {
-            _savePeriod = savePeriodProperty.getValue();
-        } else if(property == saveLocationProperty) {
-            _saveLocation = saveLocationProperty.getValue();
-        }
-    }
-    
-    private String[] prefixes = { "3pt","2pt" };
+    public void propertyChanged(Property property) {
+        // These aren't part of processing a frame, so they take effect
+        // straight away
+        if(property == asyncProcessingProperty) {
+            _asyncProcessing = asyncProcessingProperty.getValue();
+        } else if(property == pipelineStagesProperty) {
+            _pipelining = pipelineStagesProperty.getValue();
+        } else if(property == sharedWorkersProperty) {
+            CameraScheduler.shared().setThreads(_camera, sharedWorkersProperty.getValue());
+        } else if(property == saveQualityProperty) {
+            _captures.setQuality(saveQualityProperty.getValue().floatValue());
+        } else if(property == saveReplaceOldestProperty) {
+            _captures.setReplaceOldest(saveReplaceOldestProperty.getValue());
+        } else if(property == recordProperty) {
+            _recording      = recordProperty.getValue();
+            _recorderStale  = true;
+        } else if(property == recordFileProperty) {
+            _recordFile     = recordFileProperty.getValue();
+            _recorderStale  = true;
+        } else if(property == recordSizeProperty) {
+            _recordBytes    = recordSizeProperty.getValue()*1024L*1024L;
+            _recorderStale  = true;
+        } else if(property == offloadServerProperty) {
+            _offloadServer   = offloadServerProperty.getValue().trim();
+            _offloadStale    = true;
+        } else if(property == offloadJpegProperty) {
+            _offloadJpeg     = offloadJpegProperty.getValue();
+        } else if(property == offloadInFlightProperty) {
+            _offloadInFlight = offloadInFlightProperty.getValue();
+            _offloadStale    = true;
+        }
+        // Properties can be set (eg. while a saved layout is loaded) before
+        // _initVars() has filled in the choices; it publishes the first
+        // snapshot itself
+        if(_published == null) {
+            return;
+        }
+        _publishConfig();
+    }
+    
+    static final String[] prefixes = { "3pt","2pt" };
+    
+    final ResultPublisher _publisher = new ResultPublisher(prefixes);
+    
+    // Counts frames that got as far as sending results
+    private long _frameSequence;
     
     private void _sendData(int index,boolean found,double x,double y) {
-        x *= _fovx/2;
-        y *= _fovy/2;
-        String prefix = prefixes[index];
-        if(_sendResults) {
-            outputTable.putBoolean(prefix + " Target Found?", found);
-            outputTable.putNumber (prefix + " Target X Angle",     x);
-            outputTable.putNumber (prefix + " Target Y Angle",     y);
-        } else {
+        x *= _config.fovx/2;
+        y *= _config.fovy/2;
+        if(_recorder != null) {
+            _recorder.setResult(index, found, x, y);
+        }
+        // Sent along with the other classes in _flushResults(), and kept for
+        // batch mode otherwise
+        _publisher.set(index, found, x, y);
+        if(_printing()) {
+            String prefix = prefixes[index];
             if(found) {
                 System.out.println(prefix + " Target X Angle: " + x);
                 System.out.println(prefix + " Target Y Angle: " + y);
@@ -376,20 +569,50 @@ public class StormCV extends WPICameraExtension {
         }
     }
     
+    private void _publishResults() {
+        for(int i=0;i<prefixes.length;++i) {
+            if(_resultFound[i]) {
+                _sendData(i, true, _resultX[i], _resultY[i]);
+            } else {
+                _sendData(i, false, 0, 0);
+            }
+        }
+        ++_frameSequence;
+        _flushResults(false);
+    }
+    
+    private void _flushResults(boolean force) {
+        if(_sendResults) {
+            _publisher.flush(_config.table, _frameSequence, System.currentTimeMillis(),
+                             _config.resultHeartbeat, _config.sendTargetKeys, force);
+        }
+    }
+    
+    private void _sendRejections() {
+        if(_sendResults) {
+            _config.table.putNumber("Contours found", _contourCount);
+            for(int i=0;i<_rejections.length;++i) {
+                _config.table.putNumber(_rejectionKeys[i], _rejections[i]);
+            }
+        }
+    }
+    
     private void _sendTime(long nanoTime) {
         double msTime = nanoTime/1.0e6;
         if(_sendResults) {
-            outputTable.putNumber("ms per Frame",msTime);
-        } else {
+            _config.table.putNumber("ms per Frame",msTime);
+        } else if(!_quiet) {
             System.out.format("Processed in %f ms\n",msTime);
         }
     }
     
-    private double _aspectRatio(CvPoint points) {
-        ArrayList<Double> horizDx = new ArrayList<>(),
-                          horizDy = new ArrayList<>(),
-                          vertDx  = new ArrayList<>(),
-                          vertDy  = new ArrayList<>();
+    double _aspectRatio(CvPoint points) {
+        double[] horizDx = _horizDx,
+                 horizDy = _horizDy,
+                 vertDx  = _vertDx,
+                 vertDy  = _vertDy;
+        int horizCount = 0,
+            vertCount  = 0;
         for(int i=0;i<4;++i) {
             int startIndex = i,
                 endIndex   = (i+1)%4;
@@ -402,58 +625,137 @@ public class StormCV extends WPICameraExtension {
             double absDx = Math.abs(dx),
                    absDy = Math.abs(dy);
             if(absDy < absDx) {
-                horizDx.add(dx);
-                horizDy.add(dy);
+                horizDx[horizCount] = dx;
+                horizDy[horizCount] = dy;
+                ++horizCount;
             } else {
-                vertDx.add(dx);
-                vertDy.add(dy);
+                vertDx[vertCount] = dx;
+                vertDy[vertCount] = dy;
+                ++vertCount;
             }
         }
-        if(horizDx.size() != 2 || vertDx.size() != 2) {
+        if(horizCount != 2 || vertCount != 2) {
             return 0;
         }
         
         double horiz,vert;
         
-        double[] absHorizDx = { Math.abs(horizDx.get(0)),
-                                Math.abs(horizDx.get(1)) },
-                 absHorizDy = { Math.abs(horizDy.get(0)),
-                                Math.abs(horizDy.get(1)) },
-                 absVertDx  = { Math.abs(vertDx.get(0)),
-                                Math.abs(vertDx.get(1)) },
-                 absVertDy  = { Math.abs(vertDy.get(0)),
-                                Math.abs(vertDy.get(1)) };
-        if((horizDy.get(0)/horizDx.get(0) < 0) != (horizDy.get(1)/horizDx.get(1) < 0)) {
-            System.out.println("dx override");
-            horiz = (absHorizDx[0]+absHorizDx[1])/2;
+        double absHorizDx0 = Math.abs(horizDx[0]),
+               absHorizDx1 = Math.abs(horizDx[1]),
+               absHorizDy0 = Math.abs(horizDy[0]),
+               absHorizDy1 = Math.abs(horizDy[1]),
+               absVertDx0  = Math.abs(vertDx[0]),
+               absVertDx1  = Math.abs(vertDx[1]),
+               absVertDy0  = Math.abs(vertDy[0]),
+               absVertDy1  = Math.abs(vertDy[1]);
+        // The console messages are only for the command line tool; building
+        // the strings isn't free
+        if((horizDy[0]/horizDx[0] < 0) != (horizDy[1]/horizDx[1] < 0)) {
+            if(_printing()) {
+                System.out.println("dx override");
+            }
+            horiz = (absHorizDx0+absHorizDx1)/2;
         } else {
-            horiz = (Math.hypot(absHorizDx[0], absHorizDy[0])
-                     +Math.hypot(absHorizDx[1], absHorizDy[1]))
+            horiz = (Math.hypot(absHorizDx0, absHorizDy0)
+                     +Math.hypot(absHorizDx1, absHorizDy1))
                     /2;
         }
-        if((vertDx.get(0)/vertDy.get(0) < 0) != (vertDx.get(1)/vertDy.get(1) < 0)) {
-            System.out.println("dy override");
-            vert = (absVertDy[0]+absVertDy[1])/2;
+        if((vertDx[0]/vertDy[0] < 0) != (vertDx[1]/vertDy[1] < 0)) {
+            if(_printing()) {
+                System.out.println("dy override");
+            }
+            vert = (absVertDy0+absVertDy1)/2;
         } else {
-            vert = (Math.hypot(absVertDx[0], absVertDy[0])
-                     +Math.hypot(absVertDx[1], absVertDy[1]))
+            vert = (Math.hypot(absVertDx0, absVertDy0)
+                     +Math.hypot(absVertDx1, absVertDy1))
                     /2;
         }
         
 //        System.out.format("%f/%f = %f\n",horiz,vert,horiz/vert);
-        System.out.println("Aspect ratio: " + horiz/vert);
+        if(_printing()) {
+            System.out.println("Aspect ratio: " + horiz/vert);
+        }
         return horiz/vert;
     }
     
-    private void _doThreshold(WPIImage rawImage) {
-        // Extract the IplImage so we can do OpenCV magic.
-        IplImage image = StormCVUtil.getIplImage(rawImage);
+    void _doThreshold(StageFrame frame,IplImage image) {
+        _thresholdFrame = frame;
+        _thresholdImage = image;
+        if(_config.threshold == _threshold_fused || _config.threshold == _threshold_lookup ||
+           _config.backend == _backend_java) {
+            // Each output pixel only depends on its own input pixel, so
+            // stripes need no overlap
+            _stripes.run(frame.roiHeight, _stripes.stripeCount(frame.roiHeight, 0), _pixelThresholdStripe);
+        } else {
+            _doSplitThreshold(frame, image);
+        }
         
+        if(_displayIntermediate) {
+            _taps.show("Threshold",frame.bin);
+        }
+    }
+    
+    // Thresholds rows [top,top+height) of the search region with one of the
+    // pure Java thresholds
+    private void _doPixelThreshold(StageFrame frame,IplImage image,int top,int height) {
+        if(_config.threshold != _threshold_lookup) {
+            // Goes straight from BGR to the mask in one pass, no planes needed
+            _fusedThreshold.apply(image, frame.bin, frame.roiX, top, frame.roiWidth, height,
+                                  _config.h0, _config.h1, _config.s0, _config.s1, _config.v0, _config.v1);
+        } else {
+            // Until the table for the current thresholds has been built,
+            // fall back to the (exact, but slower) fused threshold
+            if(!_lookupThreshold.apply(image, frame.bin, frame.roiX, top, frame.roiWidth, height,
+                                       _config.h0, _config.h1, _config.s0, _config.s1, _config.v0, _config.v1)) {
+                _fusedThreshold.apply(image, frame.bin, frame.roiX, top, frame.roiWidth, height,
+                                      _config.h0, _config.h1, _config.s0, _config.s1, _config.v0, _config.v1);
+            }
+        }
+    }
+    
+    private void _doSplitThreshold(StageFrame frame,IplImage image) {
+        // The split path needs its own planes; only allocate them if it's
+        // actually being used. They're released when the size changes.
+        if(_hsv == null) {
+            _hsv     = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 3);
+            _hueLow  = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+            _hueHigh = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+            _satLow  = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+            _satHigh = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+            _valLow  = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+            _valHigh = _images.acquire(_detectWidth, _detectHeight, IPL_DEPTH_8U, 1);
+        }
+        
+        _splitImages[0] = image;   _splitImages[1] = _hsv;
+        _splitImages[2] = _hueLow; _splitImages[3] = _hueHigh;
+        _splitImages[4] = _satLow; _splitImages[5] = _satHigh;
+        _splitImages[6] = _valLow; _splitImages[7] = _valHigh;
+        if(frame.roiActive) {
+            _setRoi(_splitImages, frame.roiRect);
+        }
+        
+        int stripes = _stripes.stripeCount(frame.roiHeight, 0);
+        if(stripes <= 1) {
+            _splitThreshold(image, _hsv, _hueLow, _hueHigh, _satLow, _satHigh, _valLow, _valHigh, frame.bin);
+        } else {
+            _stripes.run(frame.roiHeight, stripes, _splitThresholdStripe);
+        }
+        
+        if(frame.roiActive) {
+            _resetRoi(_splitImages);
+        }
+    }
+    
+    private void _splitThreshold(CvArr image,  CvArr hsv,
+                                 CvArr hueLow, CvArr hueHigh,
+                                 CvArr satLow, CvArr satHigh,
+                                 CvArr valLow, CvArr valHigh,
+                                 CvArr bin) {
         // Convert to HSV
-        cvCvtColor(image, _hsv, CV_BGR2HSV);
+        cvCvtColor(image, hsv, CV_BGR2HSV);
                 
         // Split into individual color channels (from HSV)
-        cvSplit(_hsv, _hueLow, _satLow, _valLow, null);
+        cvSplit(hsv, hueLow, satLow, valLow, null);
         
         // Apply thresholds
         // OpenCV can only do one-way threshold (less than or greater than
@@ -461,315 +763,1034 @@ public class StormCV extends WPICameraExtension {
         // are performed then the results are ANDed together
         // The -1 is to make it an inclusive range (a >= n is equivalent to
         // a > n-1 for integers)
-        cvThreshold(_hueLow,   _hueHigh,   _h0-1, 255, CV_THRESH_BINARY);
-        cvThreshold(_hueLow,   _hueLow,    _h1,   255, CV_THRESH_BINARY_INV);
+        cvThreshold(hueLow,   hueHigh,   _config.h0-1, 255, CV_THRESH_BINARY);
+        cvThreshold(hueLow,   hueLow,    _config.h1,   255, CV_THRESH_BINARY_INV);
         
-        cvThreshold(_satLow, _satHigh, _s0-1, 255, CV_THRESH_BINARY);
-        cvThreshold(_satLow, _satLow,  _s1,   255, CV_THRESH_BINARY_INV);
+        cvThreshold(satLow, satHigh, _config.s0-1, 255, CV_THRESH_BINARY);
+        cvThreshold(satLow, satLow,  _config.s1,   255, CV_THRESH_BINARY_INV);
         
-        cvThreshold(_valLow,  _valHigh,  _v0-1, 255, CV_THRESH_BINARY);
-        cvThreshold(_valLow,  _valLow,   _v1,   255, CV_THRESH_BINARY_INV);
+        cvThreshold(valLow,  valHigh,  _config.v0-1, 255, CV_THRESH_BINARY);
+        cvThreshold(valLow,  valLow,   _config.v1,   255, CV_THRESH_BINARY_INV);
         
         // ANDing the images leaves only the pixels within all of the ranges
-        cvAnd(_hueLow, _hueHigh,   _bin, null);
-        cvAnd(_bin,    _valLow,   _bin, null);
-        cvAnd(_bin,    _valHigh,  _bin, null);
-        cvAnd(_bin,    _satLow,  _bin, null);
-        cvAnd(_bin,    _satHigh, _bin, null);
+        cvAnd(hueLow, hueHigh,   bin, null);
+        cvAnd(bin,    valLow,   bin, null);
+        cvAnd(bin,    valHigh,  bin, null);
+        cvAnd(bin,    satLow,  bin, null);
+        cvAnd(bin,    satHigh, bin, null);
+    }
+    
+    private void _setRoi(IplImage[] images,CvRect roi) {
+        for(IplImage image:images) {
+            cvSetImageROI(image, roi);
+        }
+    }
+    
+    private void _resetRoi(IplImage[] images) {
+        for(IplImage image:images) {
+            cvResetImageROI(image);
+        }
+    }
+    
+    // Works out which part of frame to search. width and height are the
+    // size being searched, which is the full frame divided by scale; the
+    // tracked rectangle is always in full frame coordinates.
+    private void _updateSearchRegion(StageFrame frame,int width,int height,int scale) {
+        int trackLeft,trackTop,
+            trackRight,trackBottom;
+        synchronized(_trackLock) {
+            // Tracking only makes sense if we're going as far as selecting a
+            // target; the debugging modes always look at the whole frame
+            frame.roiActive = _config.trackRegion && _trackValid &&
+                              (_config.process == _process_select    ||
+                               _config.process == _process_calculate ||
+                               _config.process == _process_all);
+            trackLeft   = _trackLeft/scale;
+            trackTop    = _trackTop/scale;
+            trackRight  = (_trackRight +scale-1)/scale;
+            trackBottom = (_trackBottom+scale-1)/scale;
+        }
+        if(frame.roiActive) {
+            int marginX = (int)((trackRight -trackLeft)*_config.trackMargin) + _minTrackPadding,
+                marginY = (int)((trackBottom-trackTop )*_config.trackMargin) + _minTrackPadding;
+            int left   = Math.max(0,      trackLeft  -marginX),
+                top    = Math.max(0,      trackTop   -marginY),
+                right  = Math.min(width,  trackRight +marginX),
+                bottom = Math.min(height, trackBottom+marginY);
+            if(right > left && bottom > top) {
+                frame.roiX      = left;
+                frame.roiY      = top;
+                frame.roiWidth  = right-left;
+                frame.roiHeight = bottom-top;
+            } else {
+                frame.roiActive = false;
+            }
+        }
+        if(!frame.roiActive) {
+            frame.roiX      = 0;
+            frame.roiY      = 0;
+            frame.roiWidth  = width;
+            frame.roiHeight = height;
+        }
+        frame.roiRect.x(frame.roiX).y(frame.roiY).width(frame.roiWidth).height(frame.roiHeight);
+        frame.roiOffset.x(frame.roiX).y(frame.roiY);
+    }
+    
+    private void _trackFound(int left,int top,int right,int bottom) {
+        synchronized(_trackLock) {
+            _trackValid  = _config.trackRegion;
+            _trackMisses = 0;
+            _trackLeft   = left;
+            _trackTop    = top;
+            _trackRight  = right;
+            _trackBottom = bottom;
+        }
+    }
+    
+    private void _trackMiss() {
+        synchronized(_trackLock) {
+            // Give up on the old location and go back to searching everywhere
+            if(_trackValid && ++_trackMisses > _config.trackMaxMisses) {
+                _trackValid = false;
+            }
+        }
+    }
+    
+    // Scales the points of a contour found at detection scale up to full
+    // frame coordinates, in place. The scaled points are left in the pool's
+    // point array.
+    private void _scaleContour(CvSeq contour,int scale) {
+        int total = contour.total();
+        CvPoint points = _pool.points(total);
+        cvCvtSeqToArray(contour, points, CV_WHOLE_SEQ);
+        for(int i=0;i<total;++i) {
+            CvPoint point = points.position(i);
+            point.x(point.x()*scale + scale/2).y(point.y()*scale + scale/2);
+        }
+        _replacePoints(contour, points, total);
+    }
+    
+    // Puts the first total points of points back into contour in place of
+    // what's there. Clearing hands contour's blocks back to it, and the push
+    // reuses them, so nothing new comes out of the storage.
+    private static void _replacePoints(CvSeq contour,CvPoint points,int total) {
+        cvClearSeq(contour);
+        cvSeqPushMulti(contour, points.position(0), total, 0);
+    }
+    
+    // Scales a polygon found at detection scale up to full frame coordinates
+    // (in place), then moves each corner to the outermost in-range pixel
+    // near it, looking outwards from the middle of the polygon. Only the
+    // pixels around each corner are thresholded at full resolution.
+    private void _refineCorners(IplImage image,CvSeq polygon,int scale) {
+        int width  = image.width(),
+            height = image.height();
+        if(_refineBin == null || _refineBin.width() != width || _refineBin.height() != height) {
+            _images.release(_refineBin);
+            _refineBin = _images.acquire(width, height, IPL_DEPTH_8U, 1);
+        }
         
-        if(_displayIntermediate) {
-            _displayImage("Threshold",_bin);
+        _scaleContour(polygon, scale);
+        
+        int total = polygon.total();
+        CvPoint points = _pool.points(total);
+        double centerX = 0,
+               centerY = 0;
+        for(int i=0;i<total;++i) {
+            CvPoint point = points.position(i);
+            centerX += point.x();
+            centerY += point.y();
+        }
+        centerX /= total;
+        centerY /= total;
+        
+        // A corner can be off by up to a detection pixel either way, plus
+        // whatever the shrinking smeared
+        int radius = 2*scale;
+        int step = _refineBin.widthStep();
+        ByteBuffer bin = _refineBin.getByteBuffer();
+        for(int i=0;i<total;++i) {
+            CvPoint point = points.position(i);
+            int x = point.x(),
+                y = point.y();
+            int left   = Math.max(0,      x-radius),
+                top    = Math.max(0,      y-radius),
+                right  = Math.min(width,  x+radius+1),
+                bottom = Math.min(height, y+radius+1);
+            if(right <= left || bottom <= top) {
+                continue;
+            }
+            _fusedThreshold.apply(image, _refineBin, left, top, right-left, bottom-top,
+                                  _config.h0, _config.h1, _config.s0, _config.s1, _config.v0, _config.v1);
+            
+            double dirX = x-centerX,
+                   dirY = y-centerY;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            int bestX = x,
+                bestY = y;
+            for(int py=top;py<bottom;++py) {
+                for(int px=left;px<right;++px) {
+                    if(bin.get(py*step+px) == 0) {
+                        continue;
+                    }
+                    double score = (px-centerX)*dirX + (py-centerY)*dirY;
+                    if(score > bestScore) {
+                        bestScore = score;
+                        bestX     = px;
+                        bestY     = py;
+                    }
+                }
+            }
+            point.x(bestX).y(bestY);
+        }
+        _replacePoints(polygon, points, total);
+    }
+    
+    // Same as cvBoundingRect, into _rectX/_rectY/_rectWidth/_rectHeight
+    // instead of a freshly allocated CvRect. Leaves the points in the pool's
+    // point array. Only for hulls and polygons, whose rects aren't stored;
+    // raw contours from cvFindContours already have theirs.
+    private void _boundingRect(CvSeq contour) {
+        int total = contour.total();
+        if(total == 0) {
+            _rectX = _rectY = _rectWidth = _rectHeight = 0;
+            return;
+        }
+        CvPoint points = _pool.points(total);
+        cvCvtSeqToArray(contour, points, CV_WHOLE_SEQ);
+        int left  = Integer.MAX_VALUE, top    = Integer.MAX_VALUE,
+            right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+        for(int i=0;i<total;++i) {
+            CvPoint point = points.position(i);
+            left   = Math.min(left,   point.x());
+            top    = Math.min(top,    point.y());
+            right  = Math.max(right,  point.x());
+            bottom = Math.max(bottom, point.y());
         }
+        points.position(0);
+        _rectX      = left;
+        _rectY      = top;
+        _rectWidth  = right-left+1;
+        _rectHeight = bottom-top+1;
     }
     
-    private void _closeHoles() {
+    void _closeHoles(StageFrame frame) {
         // Apply repeated dilations followed by repeated erosions in order
-        // to close holes
-        cvMorphologyEx(_bin, _bin, null, _morphology, CV_MOP_CLOSE, _holeClosingIterations);
+        // to close holes. With more than one thread this is split into
+        // overlapping stripes, which gives exactly the same result.
+        if(_config.backend == _backend_java) {
+            _javaMorphology.close(frame.bin, frame.roiX, frame.roiY, frame.roiWidth, frame.roiHeight,
+                                  _config.holeClosingIterations);
+        } else {
+            _stripes.close(frame.bin, frame.roiWidth, frame.roiHeight, _morphology, _config.holeClosingIterations);
+        }
 
         if(_displayIntermediate) {
-            _displayImage("Hole Closing",_bin);
+            _taps.show("Hole Closing",frame.bin);
         }
     }
     
-    private void _processContour(int index,WPIImage rawImage,CvSeq contour,Color color) {
-        CvScalar cvColor = CV_RGB(color.getRed(),color.getGreen(),color.getBlue());
-        IplImage target = StormCVUtil.getIplImage(rawImage);
-        cvDrawContours(target,contour,cvColor,cvColor,0,2,8);
+    // Works out how far the selected contour for target index is from
+    // where it should be
+    private void _locateTarget(StageFrame frame,int index,CvSeq contour) {
+        _resultFound[index] = false;
+        int totalPoints = contour.total();
+        if(totalPoints <= 0) {
+            // Something is REALLY wrong
+            System.err.println("No points in selected contour");
+            return;
+        }
         
-        if(_process != _process_convexHull) {
-            double desiredXNormed = _desiredLocNormed.x(),
-                   desiredYNormed = _desiredLocNormed.y();
-            // desired location in screen pixels, for drawing purposes
-            CvPoint desiredLoc = new CvPoint((int)((desiredXNormed +1)/2*rawImage.getWidth()),
-                                             (int)((-desiredYNormed+1)/2*rawImage.getHeight()));
-            
-            int totalPoints = contour.total();
-            if(totalPoints <= 0) {
-                // Something is REALLY wrong
-                System.err.println("No points in selected contour");
-                return;
+        CvPoint points = _pool.points(totalPoints);
+        cvCvtSeqToArray(contour, points, CV_WHOLE_SEQ);
+        
+        double centerX = 0,
+               centerY = 0;
+        
+        for(int i=0;i<totalPoints;++i) {
+            CvPoint point = points.position(i);
+            centerX += point.x();
+            centerY += point.y();
+        }
+        
+        centerX /= totalPoints;
+        centerY /= totalPoints;
+        _targetX[index] = centerX;
+        _targetY[index] = centerY;
+        
+        double centerXNormed = centerX/frame.raw.getWidth() *2-1,
+               centerYNormed = -(centerY/frame.raw.getHeight()*2-1);
+        
+        double offsetX = centerXNormed-frame.desiredLocNormed.x(),
+               offsetY = centerYNormed-frame.desiredLocNormed.y();
+        
+        _resultFound[index] = true;
+        _resultX[index]     = offsetX;
+        _resultY[index]     = offsetY;
+    }
+    
+    // Outlines each selected target, and joins the ones that were located
+    // to where they should be
+    private void _drawTargets(StageFrame frame) {
+        IplImage target = StormCVUtil.getIplImage(frame.raw);
+        for(int i=0;i<_selectedIndices.length;++i) {
+            if(_selectedIndices[i] == -1) {
+                continue;
             }
+            CvScalar cvColor = _config.contourScalars[i];
+            cvDrawContours(target,frame.polygons.get(_selectedIndices[i]),cvColor,cvColor,0,2,8);
             
-            CvPoint points = new CvPoint(contour.total());
-            cvCvtSeqToArray(contour, points, CV_WHOLE_SEQ);
-            
-            double centerX = 0,
-                   centerY = 0;
-            
-            for(int i=0;i<totalPoints;++i) {
-                CvPoint point = points.position(i);
-                centerX += point.x();
-                centerY += point.y();
+            if(_config.process == _process_convexHull || !_resultFound[i]) {
+                continue;
             }
-            
-            centerX /= totalPoints;
-            centerY /= totalPoints;
-            
-            cvLine(StormCVUtil.getIplImage(rawImage),
+            double desiredXNormed = frame.desiredLocNormed.x(),
+                   desiredYNormed = frame.desiredLocNormed.y();
+            // desired location in screen pixels, for drawing purposes
+            CvPoint desiredLoc = _pool.point((int)((desiredXNormed +1)/2*frame.raw.getWidth()),
+                                             (int)((-desiredYNormed+1)/2*frame.raw.getHeight()));
+            cvLine(target,
                    desiredLoc,
-                   new CvPoint((int)centerX,(int)centerY),
-                   CV_RGB(_lineColor.getRed(),_lineColor.getGreen(),_lineColor.getBlue()),
+                   _pool.point((int)_targetX[i],(int)_targetY[i]),
+                   _config.lineScalar,
                    2,8,0);
-            
-            double centerXNormed = centerX/rawImage.getWidth() *2-1,
-                   centerYNormed = -(centerY/rawImage.getHeight()*2-1);
-            
-            double offsetX = centerXNormed-_desiredLocNormed.x(),
-                   offsetY = centerYNormed-_desiredLocNormed.y();
-            
-            _sendData(index,true,offsetX,offsetY);
         }
     }
-
+    
     @Override
     public WPIImage processImage(WPIColorImage rawImage) {
-//        System.out.println("Starting processImage");
-        if(_useTestImage) {
-            _processImage = new WPIColorImage(_loadedImage.getBufferedImage());
-            rawImage = _processImage;
+        if(!_offloadServer.isEmpty() || _offloadClient != null) {
+            if(_offload(rawImage)) {
+                return rawImage;
+            }
+        }
+        boolean async = _asyncProcessing;
+        if(_wasAsync && !async) {
+            // A worker may still be in the middle of a frame, and only one
+            // thread can be processing at a time. Whatever was still waiting
+            // for a worker is dropped.
+            try {
+                CameraScheduler.shared().cancel(_camera);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return rawImage;
+            }
+        }
+        _wasAsync = async;
+        if(!async) {
+            return _processFrame(rawImage);
+        }
+        
+        // Hand the frame off and show whatever finished most recently, so
+        // the camera never waits on processing
+        WPIImage latest = _frameQueue.offer(rawImage);
+        CameraScheduler.shared().submit(_camera);
+        return (latest != null) ? latest : rawImage;
+    }
+    
+    /**
+     * Sends rawImage to the offload server, if there is one.
+     * @return false if frames should be processed here instead
+     */
+    private synchronized boolean _offload(WPIColorImage rawImage) {
+        if(_offloadStale || _offloadLost) {
+            if(_offloadClient != null) {
+                _offloadClient.close();
+                _offloadClient = null;
+            }
+            if(_offloadStale) {
+                _offloadStale     = false;
+                _offloadRetryTime = 0;
+            }
+            _offloadLost = false;
+        }
+        String server = _offloadServer;
+        if(server.isEmpty()) {
+            return false;
+        }
+        if(_offloadClient == null) {
+            long now = System.currentTimeMillis();
+            if(now < _offloadRetryTime) {
+                return true;
+            }
+            _offloadRetryTime = now + _offloadRetryMillis;
+            try {
+                int colon = server.lastIndexOf(':');
+                String host = (colon < 0) ? server : server.substring(0, colon);
+                int port = (colon < 0) ? VisionProtocol.DEFAULT_PORT : Integer.parseInt(server.substring(colon+1));
+                _offloadClient = new VisionClient(host, port, _offloadInFlight, _offloadTimeoutMillis, _offloadListener);
+            } catch(IOException | RuntimeException ex) {
+                Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Can't connect to offload server \""+server+"\"", ex);
+                return true;
+            }
+        }
+        try {
+            _offloadClient.send(StormCVUtil.getIplImage(rawImage), _offloadJpeg);
+        } catch(IOException ex) {
+            Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Lost offload server \""+server+"\"", ex);
+            _offloadLost = true;
+        }
+        return true;
+    }
+    
+    // Publishes results as they come back from the offload server, on the
+    // client's reader thread. Nothing is processed here while offloading, so
+    // this is the only thing using _publisher.
+    private final VisionClient.Listener _offloadListener = new VisionClient.Listener() {
+        @Override
+        public void result(long sequence,long roundTripNanos,long processNanos,
+                           int count,boolean[] found,double[] x,double[] y) {
+            for(int i=0;i<count && i<prefixes.length;++i) {
+                _publisher.set(i, found[i], x[i], y[i]);
+            }
+            if(!_sendResults) {
+                return;
+            }
+            PipelineConfig config = _published;
+            _publisher.flush(config.table, sequence, System.currentTimeMillis(),
+                             config.resultHeartbeat, config.sendTargetKeys, false);
+            VisionClient client = _offloadClient;
+            if(client != null) {
+                config.table.putNumber("Offload frames sent",    client.getSent());
+                config.table.putNumber("Offload frames dropped", client.getDropped());
+            }
+            config.table.putNumber("Offload round trip (ms)",  roundTripNanos/1.0e6);
+            config.table.putNumber("Offload process time (ms)", processNanos/1.0e6);
+        }
+        
+        @Override
+        public void disconnected(IOException reason) {
+            Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Lost offload server", reason);
+            _offloadLost = true;
+        }
+    };
+    
+    private void _sendQueueStats() {
+        if(_sendResults) {
+            _config.table.putNumber("Frames received",  _frameQueue.getReceived());
+            _config.table.putNumber("Frames processed", _frameQueue.getProcessed());
+            _config.table.putNumber("Frames dropped",   _frameQueue.getDropped());
+        }
+    }
+    
+    private WPIImage _processFrame(WPIColorImage rawImage) {
+        PipelineConfig config = _published;
+        // Recording and --show both want each frame finished before the
+        // next one starts
+        boolean pipelined = _pipelining && !_recording && !_displayIntermediate;
+        
+        // A frame in flight finishes with the settings and size it started
+        // with, so the pipeline is emptied before either changes. It isn't
+        // shown: the new settings or size can free its mask (and a result
+        // that shows it) before anything paints it.
+        if(_inFlight && (!pipelined || config != _config ||
+                         rawImage.getWidth()  != _frameWidth ||
+                         rawImage.getHeight() != _frameHeight)) {
+            StageFrame drained = _engine.drain();
+            if(drained != null) {
+                _spareFrames.add(drained);
+            }
+            _inFlight = false;
+        }
+        
+        // The one read of the settings for this frame
+        _config      = config;
+        _frameWidth  = rawImage.getWidth();
+        _frameHeight = rawImage.getHeight();
+        _stripes.setParallelism(_config.parallelStripes);
+        
+        if(!pipelined) {
+            if(_shownFrame != null) {
+                _spareFrames.add(_shownFrame);
+                _shownFrame = null;
+            }
+            _beginFrame(_frame, rawImage, false);
+            _engine.run(_frame);
+            return _frame.result;
+        }
+        
+        StageFrame frame = _spareFrames.poll();
+        if(frame == null) {
+            frame = new StageFrame();
+            _pipelineFrames.add(frame);
+        }
+        _beginFrame(frame, rawImage, true);
+        StageFrame finished = _engine.pipeline(frame);
+        _inFlight = true;
+        if(finished == null) {
+            // Nothing has come out the other end yet, or the pipeline was
+            // just emptied
+            return rawImage;
+        }
+        // The frame shown last time can be reused now that it's been
+        // replaced
+        if(_shownFrame != null) {
+            _spareFrames.add(_shownFrame);
+        }
+        _shownFrame = finished;
+        return finished.result;
+    }
+    
+    // Everything that happens to a frame before its stages, on the calling
+    // thread. copy is whether frame needs its own copy of rawImage, because
+    // it'll outlive this call.
+    private void _beginFrame(StageFrame frame,WPIColorImage rawImage,boolean copy) {
+        frame.times.begin();
+        frame.imageStart = _images.getAllocations();
+        // Heap allocations can't be told apart once the frame changes
+        // threads halfway through
+        frame.heapStart  = copy ? -1 : FramePool.threadAllocatedBytes();
+        _beginRecording(rawImage);
+        
+        if(_config.useTestImage) {
+            rawImage = _testFrame(rawImage.getWidth(), rawImage.getHeight());
         }
         if(Robot.getTable().getBoolean("Enabled", false)) {
             long currTime = System.currentTimeMillis();
-            if(!_useTestImage && _savePeriod >= 0 && (_prevSaveTime < 0 || _prevSaveTime + _savePeriod*1000 <= currTime)) { 
+            if(!_config.useTestImage && _config.savePeriod >= 0 && (_prevSaveTime < 0 || _prevSaveTime + _config.savePeriod*1000 <= currTime)) { 
                 _prevSaveTime = currTime;
-                final IplImage raw = StormCVUtil.getIplImage(rawImage);
-                new Thread() {
-                    private final String folder = _saveLocation,
-                                         name = "/Capture " + new SimpleDateFormat("yyyy-MM-dd HH.mm.ss").format(new Date()) + ".jpg";
-                    private final IplImage copy = IplImage.create(raw.cvSize(),raw.depth(),raw.nChannels());
-                    {
-                        cvCopy(raw, copy);
-                        setPriority(Thread.MIN_PRIORITY);
-                    }
-                    @Override
-                    public void run() {
-                        try {
-                            System.out.println("Saving \"" + name + "\"");
-                            File folderFile = new File(folder);
-                            folderFile.mkdirs();
-                            File out = new File(folder + name);
-                            ImageIO.write(copy.getBufferedImage(), "jpg", out);
-                            System.out.println("Saved \"" + name + "\"");
-                        } catch (Exception ex) {
-                            Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Failed to save \""+name+"\"", ex);
-                            ex.printStackTrace();
-                        } finally {
-                            copy.deallocate();
-                        }
-                    }
-                }.start();
+                _captures.offer(StormCVUtil.getIplImage(rawImage), _config.saveLocation);
+                _sendCaptureStats();
             }
         } else {
             _prevSaveTime = -1;
         }
-        long startTime = System.nanoTime();
         if(_displayIntermediate) {
-            _displayImage("Raw",StormCVUtil.getIplImage(rawImage));
+            _taps.show("Raw",StormCVUtil.getIplImage(rawImage));
         }
-        
-        // If we aren't doing any processing, leave the image as-is
-        if(_process == _process_nothing) {
-            return rawImage;
+        if(copy) {
+            frame.hold(rawImage);
+        } else {
+            frame.raw = rawImage;
         }
-        
-        int distanceIndex = _getDistanceIndex();
-        _desiredLocNormed = new CvPoint2D32f(_desiredXAngles[distanceIndex]/(_fovx/2),_desiredYAngles[distanceIndex]/(_fovy/2));
-        
-        // Reallocate temporaries if the size has changed
-        if(_size == null || _size.width() != rawImage.getWidth() || _size.height() != rawImage.getHeight()) {
-            _size    = cvSize(rawImage.getWidth(),rawImage.getHeight());
-            _hsv     = IplImage.create(_size, 8, 3);
-            _bin     = IplImage.create(_size, 8, 1);
-            _hueLow  = IplImage.create(_size, 8, 1);
-            _hueHigh = IplImage.create(_size, 8, 1);
-            _satLow  = IplImage.create(_size, 8, 1);
-            _satHigh = IplImage.create(_size, 8, 1);
-            _valLow  = IplImage.create(_size, 8, 1);
-            _valHigh = IplImage.create(_size, 8, 1);
+        frame.result = frame.raw;
+        frame.times.skip();
+    }
+    
+    /**
+     * Records rawImage (before anything draws on it) if recording is on.
+     * _recorder is left null when this frame isn't being recorded.
+     */
+    private void _beginRecording(WPIColorImage rawImage) {
+        if(_recorderStale || !_recording) {
+            if(_recorder != null) {
+                _recorder.close();
+                _recorder = null;
+            }
+            if(_recorderStale) {
+                _recorderStale = false;
+                _recorderLost  = false;
+            }
+            if(!_recording) {
+                return;
+            }
         }
-        
-        _doThreshold(rawImage);
-        
-        if(_process != _process_threshold) {
-            _closeHoles();
+        if(_recorder == null) {
+            if(_recorderLost) {
+                return;
+            }
+            _recorder = new FrameRecorder(new File(_recordFile), _recordBytes);
         }
-        
-        if(_process == _process_threshold || _process == _process_closeHoles) {
-            // Allocate _ret if it's the first time, otherwise reuse it.
-            if(_ret == null) {
-                _ret = StormCVUtil.makeWPIGrayscaleImage(_bin);
+        try {
+            _recorder.beginFrame(StormCVUtil.getIplImage(rawImage), System.currentTimeMillis(), _config.version);
+        } catch(IOException | RuntimeException ex) {
+            // Don't retry every frame; changing the record settings does
+            Logger.getLogger(StormCV.class.getName()).log(Level.SEVERE, "Can't record to \""+_recordFile+"\"", ex);
+            _recorder.close();
+            _recorder     = null;
+            _recorderLost = true;
+        }
+        if(_recorder != null && _sendResults) {
+            _config.table.putNumber("Frames recorded", _recorder.getFramesWritten());
+        }
+    }
+    
+    private void _sendCaptureStats() {
+        if(_sendResults) {
+            _config.table.putNumber("Captures saved",   _captures.getSaved());
+            _config.table.putNumber("Captures dropped", _captures.getDropped());
+        }
+    }
+    
+    private void _sendAllocations(long nativeAllocations,long heapBytes) {
+        // Both of these should sit at 0 once the frame size settles; anything
+        // else is a regression on the per-frame path
+        if(_sendResults) {
+            _config.table.putNumber("Native allocations per frame", nativeAllocations);
+            _config.table.putNumber("Heap bytes per frame",         heapBytes);
+            // Everything the image pool is holding; this should level off
+            // too, or something isn't being released
+            _config.table.putNumber("Native image bytes",      _images.getLiveBytes());
+            _config.table.putNumber("Native image bytes peak", _images.getPeakBytes());
+            _config.table.putNumber("Native images in use",    _images.getCheckedOut());
+        }
+    }
+    
+    // The stages, in order. Threshold and close work on pixels and the rest
+    // on what they found; when pipelining, the first two run on the calling
+    // thread and the rest on the engine's. A stage returns false where
+    // processProperty says to stop, having set the frame's result.
+    private final StageEngine.Stage<StageFrame> _thresholdStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            // If we aren't doing any processing, leave the image as-is
+            if(_config.process == _process_nothing) {
+                return false;
+            }
+            
+            int distanceIndex = _getDistanceIndex();
+            frame.desiredLocNormed.x((float)_config.desiredXNormed[distanceIndex])
+                                  .y((float)_config.desiredYNormed[distanceIndex]);
+            
+            IplImage detectImage = _prepareDetection(frame, frame.raw);
+            _doThreshold(frame, detectImage);
+            frame.times.lap(StageTimes.THRESHOLD);
+            
+            if(_config.process == _process_threshold) {
+                frame.result = frame.binView();
+                frame.times.lap(StageTimes.DRAW);
+                return false;
+            }
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _closeStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            _closeHoles(frame);
+            frame.times.lap(StageTimes.CLOSE);
+            
+            if(_config.process == _process_closeHoles) {
+                frame.result = frame.binView();
+                frame.times.lap(StageTimes.DRAW);
+                return false;
+            }
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _contoursStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            // Waiting to be handed over isn't part of any stage
+            frame.times.skip();
+            
+            // The run-length detector goes straight to polygons, so contours
+            // is left null and there's no hull stage
+            if(_config.detector == _detect_runs) {
+                frame.contours = null;
+                frame.polygons = _blobPolygons(frame);
+                frame.anyFound = (_contourCount != 0);
+            } else {
+                frame.contours = _findContours(frame);
+                frame.polygons = null;
+                frame.anyFound = frame.contours != null && !frame.contours.isNull() && frame.contours.total() != 0;
+            }
+            frame.times.lap(StageTimes.CONTOURS);
+            
+            // Whatever the mode, finding nothing goes on to publish that
+            if(!frame.anyFound) {
+                return true;
+            }
+            
+            CvScalar color3pt = _config.contourScalar3pt;
+            
+            if(_displayIntermediate && frame.contours != null) {
+                IplImage raw = StormCVUtil.getIplImage(frame.raw);
+                IplImage copy = _taps.begin("Find Contours",raw.width(),raw.height(),raw.nChannels());
+                if(copy != null) {
+                    cvCopy(raw, copy);
+                    cvDrawContours(copy, frame.contours, color3pt, color3pt, 1, 2, 8);
+                    _taps.commit("Find Contours");
+                }
+                frame.times.skip();
+            }
+            
+            if(_config.process == _process_contours && frame.contours != null) {
+                if(frame.scale > 1) {
+                    for(CvSeq contour = frame.contours;contour != null && !contour.isNull();contour = contour.h_next()) {
+                        _scaleContour(contour, frame.scale);
+                    }
+                }
+                _drawOverlay(frame);
+                cvDrawContours(StormCVUtil.getIplImage(frame.raw), frame.contours, color3pt, color3pt, 1, 2, 8);
+                frame.times.lap(StageTimes.DRAW);
+                return false;
+            }
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _hullStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            if(!frame.anyFound) {
+                _polygons.clear();
+                frame.polygons = _polygons;
+                return true;
+            }
+            
+            if(frame.polygons == null) {
+                frame.polygons = _convexPolygons(frame, frame.contours);
+                frame.times.lap(StageTimes.HULL);
+            }
+            
+            CvScalar color3pt = _config.contourScalar3pt;
+            
+            // The blobs' polygons are all there is to show for either step
+            if(_config.process == _process_convexHull || _config.process == _process_contours) {
+                _drawOverlay(frame);
+                IplImage target = StormCVUtil.getIplImage(frame.raw);
+                for(CvSeq contour: frame.polygons) {
+                    if(frame.scale > 1) {
+                        _scaleContour(contour, frame.scale);
+                    }
+                    cvDrawContours(target,contour,color3pt,color3pt,0,2,8);
+                }
+                frame.times.lap(StageTimes.DRAW);
+                return false;
+            } else if(_displayIntermediate) {
+                IplImage raw = StormCVUtil.getIplImage(frame.raw);
+                IplImage copy = _taps.begin("Convex Hull",raw.width(),raw.height(),raw.nChannels());
+                if(copy != null) {
+                    cvCopy(raw, copy);
+                    for(CvSeq contour: frame.polygons) {
+                        cvDrawContours(copy,contour,color3pt,color3pt,0,2,8);
+                    }
+                    _taps.commit("Convex Hull");
+                }
+                frame.times.skip();
+            }
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _classifyStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            ArrayList<CvSeq> polygons = frame.polygons;
+            int[] selectedIndices = _selectTargets(frame, polygons, frame.raw);
+            
+            // Remember where the selected targets were so later frames only
+            // have to search around them
+            int trackLeft  = Integer.MAX_VALUE, trackTop    = Integer.MAX_VALUE,
+                trackRight = Integer.MIN_VALUE, trackBottom = Integer.MIN_VALUE;
+            for(int i=0;i<selectedIndices.length;++i) {
+                if(selectedIndices[i] == -1) {
+                    continue;
+                }
+                _boundingRect(polygons.get(selectedIndices[i]));
+                trackLeft   = Math.min(trackLeft,   _rectX);
+                trackTop    = Math.min(trackTop,    _rectY);
+                trackRight  = Math.max(trackRight,  _rectX+_rectWidth);
+                trackBottom = Math.max(trackBottom, _rectY+_rectHeight);
+            }
+            if(trackLeft <= trackRight) {
+                _trackFound(trackLeft, trackTop, trackRight, trackBottom);
             } else {
-                StormCVUtil.copyImage(_ret, _bin);
+                _trackMiss();
             }
             
-            return _ret;
+            for(int i=0;i<selectedIndices.length;++i) {
+                if(selectedIndices[i] == -1 || _config.process == _process_convexHull) {
+                    _resultFound[i] = false;
+                    continue;
+                }
+                _locateTarget(frame, i, polygons.get(selectedIndices[i]));
+            }
+            frame.times.lap(StageTimes.CLASSIFY);
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _publishStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            _publishResults();
+            _sendRejections();
+            frame.times.lap(StageTimes.PUBLISH);
+            return true;
+        }
+    };
+    
+    private final StageEngine.Stage<StageFrame> _drawStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            _drawOverlay(frame);
+            if(_config.drawOverlay) {
+                _drawTargets(frame);
+            }
+            frame.times.lap(StageTimes.DRAW);
+            return true;
+        }
+    };
+    
+    // Runs after every frame's last stage, wherever it stopped
+    private final StageEngine.Stage<StageFrame> _finishStage = new StageEngine.Stage<StageFrame>() {
+        @Override
+        public boolean run(StageFrame frame) {
+            if(_recorder != null) {
+                _recorder.endFrame();
+            }
+            // Every frame ends up here, so the frame time is sent even when
+            // processing stops early
+            _sendTime(_stageTimes.endFrame(frame.times));
+            if(_sendResults) {
+                _stageTimes.publishIfDue(_config.table, _config.timingPeriod);
+            }
+            
+            long heapBytes = (frame.heapStart < 0) ? -1 : FramePool.threadAllocatedBytes()-frame.heapStart;
+            _sendAllocations(_pool.frameAllocations() + _images.getAllocations()-frame.imageStart, heapBytes);
+            // The scratch points are only used from contours on, so the next
+            // frame can start reusing them now
+            _pool.beginFrame();
+            return true;
+        }
+    };
+    
+    private final StageEngine<StageFrame> _engine = new StageEngine<>("StormCV stages",
+            Arrays.<StageEngine.Stage<StageFrame>>asList(_thresholdStage, _closeStage,
+                                                         _contoursStage,  _hullStage, _classifyStage,
+                                                         _publishStage,   _drawStage),
+            2, _finishStage);
+    
+    // The frame processImage() reuses when not pipelining, and the ones that
+    // take turns when it is: spare, in flight, and the one last shown
+    final StageFrame _frame = new StageFrame();
+    private final List<StageFrame> _pipelineFrames = new ArrayList<>();
+    private final ArrayDeque<StageFrame> _spareFrames = new ArrayDeque<>();
+    private StageFrame _shownFrame;
+    private boolean _inFlight;
+    // The size of the last frame, so a new size can empty the pipeline
+    private int _frameWidth,
+                _frameHeight;
+    
+    private void _drawOverlay(StageFrame frame) {
+        if(_config.drawOverlay) {
+            _overlay.draw(StormCVUtil.getIplImage(frame.raw), _config);
+        }
+    }
+    
+    // The next synthetic frame, drawn into the same buffer every time
+    private WPIColorImage _testFrame(int width,int height) {
+        if(_testFrames == null || _testFrames.getWidth() != width || _testFrames.getHeight() != height ||
+           _testFrames.getTargets() != _config.testImageTargets) {
+            if(_testFrames != null) {
+                _testFrames.dispose();
+            }
+            _testFrames = new SyntheticFrames(width, height, _config.testImageTargets, 0.002, 2729);
+            _testFrames.setPose(0, 0, 15, 0.1);
+        }
+        return _testFrames.next(_testFrameIndex++);
+    }
+    
+    // Gets frame's mask and search region ready, and returns the image to
+    // threshold (the frame itself, or a shrunk copy of it)
+    IplImage _prepareDetection(StageFrame frame,WPIImage rawImage) {
+        // Detection (everything up to and including the convex hulls) runs
+        // on a copy of the frame shrunk by this much
+        int scale = _config.detectScale;
+        frame.scale = scale;
+        int detectWidth  = rawImage.getWidth() /scale,
+            detectHeight = rawImage.getHeight()/scale;
+        
+        // Reallocate temporaries if the size has changed. Nothing will ask
+        // for the old size again, so the pool lets go of it too.
+        if(_detectWidth != detectWidth || _detectHeight != detectHeight) {
+            _detectWidth  = detectWidth;
+            _detectHeight = detectHeight;
+            _releaseImages();
+            _images.trim();
+            synchronized(_trackLock) {
+                _trackValid = false;
+            }
+        }
+        if(frame.bin == null) {
+            frame.bin = _images.acquire(detectWidth, detectHeight, IPL_DEPTH_8U, 1);
         }
         
+        IplImage detectImage = StormCVUtil.getIplImage(rawImage);
+        if(scale > 1) {
+            if(_small == null) {
+                _small = _images.acquire(detectWidth, detectHeight, IPL_DEPTH_8U, 3);
+            }
+            cvResize(detectImage, _small, CV_INTER_AREA);
+            detectImage = _small;
+        }
+        
+        _updateSearchRegion(frame, detectWidth, detectHeight, scale);
+        if(frame.roiActive) {
+            // Everything up to and including cvFindContours only looks at
+            // the search region of the mask
+            cvSetImageROI(frame.bin, frame.roiRect);
+        }
+        return detectImage;
+    }
+    
+    private void _clearStorage() {
         if(_storage == null) {
             _storage = CvMemStorage.create();
+            _pool.countAllocation();
         } else {
             cvClearMemStorage(_storage);
         }
+    }
+    
+    // Finds the outer contours in the search region of frame's mask. This
+    // scribbles on the mask, and resets its ROI.
+    CvSeq _findContours(StageFrame frame) {
+        _clearStorage();
+        
+        CvSeq contours = _contours;
+        _contourCount = 0;
+        for(int i=0;i<_rejections.length;++i) {
+            _rejections[i] = 0;
+        }
         
-        CvSeq contours = new CvSeq();
-        
-        // Detects any contours in _bin. CV_RETR_EXTERNAL makes it only find the
+        // Detects any contours in the mask. CV_RETR_EXTERNAL makes it only find the
         // outer contours of a shape, CV_CHAIN_APPROX_TC89_KCOS uses "Teh-Chin
         // Chain Approximation" -- I have no idea what that means yet.
-        cvFindContours(_bin, _storage, contours, 256, CV_RETR_EXTERNAL, CV_CHAIN_APPROX_TC89_KCOS);
-//        System.err.println("Found contours");
-        
-        CvScalar crosshairColor[] = new CvScalar[4];
-        for(int i=0;i<crosshairColor.length;++i) {
-            crosshairColor[i] = CV_RGB(_crosshairColor[i].getRed(),
-                                       _crosshairColor[i].getGreen(),
-                                       _crosshairColor[i].getBlue());
-        }
-        CvScalar gridLineColor = CV_RGB(_gridLineColor.getRed(),
-                                        _gridLineColor.getGreen(),
-                                        _gridLineColor.getBlue());
-
-        cvLine(StormCVUtil.getIplImage(rawImage),
-               new CvPoint(rawImage.getWidth()/2,0),
-               new CvPoint(rawImage.getWidth()/2,rawImage.getHeight()),
-               gridLineColor,
-               2,8,0);
-        cvLine(StormCVUtil.getIplImage(rawImage),
-               new CvPoint(0,rawImage.getHeight()*2/3),
-               new CvPoint(rawImage.getWidth(),rawImage.getHeight()*2/3),
-               gridLineColor,
-               2,8,0);
-//        System.err.println("Drew big white lines ... starting the draw of " + _desiredXAngles.length + " crosshairs");
-        
-        for(int i=0;i<_desiredXAngles.length;++i) {
-//            System.out.println("Drawing crosshair " + i + "?");
-            double desiredXNormed = _desiredXAngles[i]/(_fovx/2),
-                   desiredYNormed = _desiredYAngles[i]/(_fovy/2);
-            if(Math.abs(desiredXNormed) > 1 || Math.abs(desiredYNormed) > 1) {
-                continue;
-            }
-//            System.out.println("Drawing crosshair " + i);
-            CvPoint desiredLoc = new CvPoint((int)((desiredXNormed +1)/2*rawImage.getWidth()),
-                                             (int)((-desiredYNormed+1)/2*rawImage.getHeight()));
-
-            CvPoint left   = new CvPoint(desiredLoc.x()-_crosshairSize,desiredLoc.y()),
-                    right  = new CvPoint(desiredLoc.x()+_crosshairSize,desiredLoc.y()),
-                    top    = new CvPoint(desiredLoc.x(),desiredLoc.y()-_crosshairSize),
-                    bottom = new CvPoint(desiredLoc.x(),desiredLoc.y()+_crosshairSize);
-
-            cvLine(StormCVUtil.getIplImage(rawImage),
-                   left,right,
-                   crosshairColor[i],
-                   2,8,0);
-            cvLine(StormCVUtil.getIplImage(rawImage),
-                   top,bottom,
-                   crosshairColor[i],
-                   2,8,0);
+        // The offset puts the contours back into full frame coordinates if
+        // only the search region was looked at.
+        cvFindContours(frame.bin, _storage, contours, 256, CV_RETR_EXTERNAL, CV_CHAIN_APPROX_TC89_KCOS, frame.roiOffset);
+        if(frame.roiActive) {
+            cvResetImageROI(frame.bin);
         }
-        
-        if(contours == null || contours.isNull() || contours.total() == 0) {
-            for(int i=0;i<prefixes.length;++i) {
-                _sendData(i,false,0,0);
-            }
-            return rawImage;
+        return contours;
+    }
+    
+    /**
+     * The run-length alternative to _findContours() and _convexPolygons():
+     * one pass over the mask, then each blob big enough to be a target becomes
+     * a polygon from its extreme corners. Corners that coincide are only
+     * used once, so blobs that aren't quadrilaterals get thrown out by the
+     * vertex count check like any other polygon.
+     */
+    ArrayList<CvSeq> _blobPolygons(StageFrame frame) {
+        _clearStorage();
+        _contourCount = 0;
+        for(int i=0;i<_rejections.length;++i) {
+            _rejections[i] = 0;
         }
         
-        CvScalar color3pt = CV_RGB(_contourColor3pt.getRed(),_contourColor3pt.getGreen(),_contourColor3pt.getBlue());
-        
-        if(_displayIntermediate) {
-            IplImage raw = StormCVUtil.getIplImage(rawImage);
-            IplImage copy = IplImage.create(raw.cvSize(),raw.depth(),raw.nChannels());
-            cvCopy(raw, copy);
-            cvDrawContours(copy, contours, color3pt, color3pt, 1, 2, 8);
-            
-            _displayImage("Find Contours",copy);
-            
-            copy.deallocate();
+        // The blobs come back in the mask's coordinates, ROI or not
+        RunLengthBlobs blobs = _blobs;
+        int count = blobs.extract(frame.bin, frame.roiX, frame.roiY, frame.roiWidth, frame.roiHeight);
+        if(frame.roiActive) {
+            cvResetImageROI(frame.bin);
         }
         
-        if(_process == _process_contours) {
-            cvDrawContours(StormCVUtil.getIplImage(rawImage), contours, color3pt, color3pt, 1, 2, 8);
-            return rawImage;
+        ArrayList<CvSeq> polygons = _polygons;
+        polygons.clear();
+        double minArea = _detectWidth*_detectHeight*_config.minAreaRatio;
+        for(int blob=0;blob<count;++blob) {
+            ++_contourCount;
+            int width  = blobs.getRight(blob) -blobs.getLeft(blob)+1,
+                height = blobs.getBottom(blob)-blobs.getTop(blob)+1;
+            if(width*height < minArea) {
+                ++_rejections[REJECT_AREA];
+                continue;
+            }
+            CvSeq polygon = cvCreateSeq(CV_SEQ_POLYGON, _polygonHeaderSize, _pointSize, _storage);
+            int prevX = Integer.MIN_VALUE,
+                prevY = Integer.MIN_VALUE;
+            for(int corner=0;corner<4;++corner) {
+                int x = blobs.getCornerX(blob, corner),
+                    y = blobs.getCornerY(blob, corner);
+                if(x == prevX && y == prevY) {
+                    continue;
+                }
+                if(corner == 3 && x == blobs.getCornerX(blob, 0) && y == blobs.getCornerY(blob, 0)) {
+                    continue;
+                }
+                cvSeqPush(polygon, _pool.point(x, y));
+                prevX = x;
+                prevY = y;
+            }
+            polygons.add(polygon);
         }
-        
-        ArrayList<CvSeq> convexContours = new ArrayList<>();
-        while(contours != null && !contours.isNull()) {
+        return polygons;
+    }
+    
+    // Convex hull of each contour, simplified to a polygon
+    ArrayList<CvSeq> _convexPolygons(StageFrame frame,CvSeq contours) {
+        int scale = frame.scale;
+        ArrayList<CvSeq> convexContours = _polygons;
+        convexContours.clear();
+        
+        // The hull's bounding rect is the same as the contour's, so specks
+        // can be thrown out here before paying for a hull and approxPoly.
+        // The approximated polygon can only be smaller, so this never drops
+        // anything _selectTargets would have kept. cvFindContours already
+        // worked out each contour's rect, so this doesn't touch the points,
+        // and the rect is read through the pool's one header.
+        double minArea = _detectWidth*_detectHeight*_config.minAreaRatio;
+        for(;contours != null && !contours.isNull();contours = contours.h_next()) {
+            ++_contourCount;
+            CvRect rect = _pool.contourRect(contours);
+            if((double)rect.width()*rect.height() < minArea) {
+                ++_rejections[REJECT_AREA];
+                continue;
+            }
             CvSeq convexHull = cvConvexHull2(contours, _storage, CV_CLOCKWISE, 1);
-            CvSeq polygon    = cvApproxPoly(convexHull,convexHull.header_size(),_storage,CV_POLY_APPROX_DP,_polygonApprox,0);
+            // The approximation tolerance is in full frame pixels
+            CvSeq polygon    = cvApproxPoly(convexHull,convexHull.header_size(),_storage,CV_POLY_APPROX_DP,_config.polygonApprox/scale,0);
             convexContours.add(polygon);
-            contours = contours.h_next();
-        }
-        
-        if(_process == _process_convexHull) {
-            IplImage target = StormCVUtil.getIplImage(rawImage);
-            for(CvSeq contour: convexContours) {
-                cvDrawContours(target,contour,color3pt,color3pt,0,2,8);
-            }
-            return rawImage;
-        } else if(_displayIntermediate) {
-            IplImage raw = StormCVUtil.getIplImage(rawImage);
-            IplImage copy = IplImage.create(raw.cvSize(),raw.depth(),raw.nChannels());
-            cvCopy(raw, copy);
-            
-            for(CvSeq contour: convexContours) {
-                cvDrawContours(copy,contour,color3pt,color3pt,0,2,8);
-            }
-            _displayImage("Convex Hull", copy);
-            
-            copy.deallocate();
         }
-        
-        int[] selectedIndices = { -1, -1 };
-        
-        double minArea = rawImage.getWidth()*rawImage.getHeight()*_minAreaRatio;
-        double[] largestAreas = { 0, 0 };
+        return convexContours;
+    }
+    
+    // Picks the best polygon for each target class, or -1 for none. This is
+    // where candidates are scaled back up to full resolution.
+    int[] _selectTargets(StageFrame frame,ArrayList<CvSeq> convexContours,WPIImage rawImage) {
+        int scale = frame.scale;
+        int detectWidth  = _detectWidth,
+            detectHeight = _detectHeight;
+        
+        int[] selectedIndices = _selectedIndices;
+        selectedIndices[0] = -1;
+        selectedIndices[1] = -1;
+        
+        // Both sides of this are at detection scale, so the ratio means the
+        // same thing whatever the scale is
+        double minArea = detectWidth*detectHeight*_config.minAreaRatio;
+        double[] largestAreas = _largestAreas;
         double tallestHeight = 0;
-        double[] smallestDistances = { 0, 0 };
+        double[] smallestDistances = _smallestDistances;
         for(int i=0;i<convexContours.size();++i) {
             CvSeq contour = convexContours.get(i);
-            CvRect boundingRect = cvBoundingRect(contour, 1);
-            double area = boundingRect.width()*boundingRect.height();
-            if(contour.total() != 2 && area < minArea) {
+            if(contour.total() != 4/* && contour.total() != 2*/) {
+                ++_rejections[REJECT_VERTICES];
                 continue;
             }
-            if(contour.total() != 4/* && contour.total() != 2*/) {
+            _boundingRect(contour);
+            double area = _rectWidth*_rectHeight;
+            if(contour.total() != 2 && area < minArea) {
+                ++_rejections[REJECT_AREA];
                 continue;
             }
-            CvPoint points = new CvPoint(contour.total());
+            if(scale > 1) {
+                // From here on everything is measured at full resolution
+                _refineCorners(StormCVUtil.getIplImage(rawImage), contour, scale);
+            }
+            CvPoint points = _pool.points(contour.total());
             cvCvtSeqToArray(contour, points, CV_WHOLE_SEQ);
 
             int index;
             
             if(contour.total() == 2) {
-                System.out.println("Line");
+                if(_printing()) {
+                    System.out.println("Line");
+                }
                 index = 2;
                 double dx = Math.abs(points.position(1).x()-points.position(0).x()),
                        dy = Math.abs(points.position(1).y()-points.position(0).y());
-                if(dy < _nearVertSlope*dx || dy < _min5ptHeightRatio*rawImage.getHeight()) {
+                if(dy < _config.nearVertSlope*dx || dy < _config.min5ptHeightRatio*rawImage.getHeight()) {
                     continue;
                 }
-                System.out.println("Vert line");
+                if(_printing()) {
+                    System.out.println("Vert line");
+                }
                 if(selectedIndices[index] == -1 || dy > tallestHeight) {
                     selectedIndices[index] = i;
                     tallestHeight          = dy;
@@ -778,15 +1799,16 @@ public class StormCV extends WPICameraExtension {
 
                 double aspectRatio = _aspectRatio(points);
 
-                if(aspectRatio > _min3ptAspectRatio && aspectRatio < _max3ptAspectRatio) {
+                if(aspectRatio > _config.min3ptAspectRatio && aspectRatio < _config.max3ptAspectRatio) {
                     index = 0;
-                } else if(aspectRatio > _min2ptAspectRatio && aspectRatio < _max2ptAspectRatio) {
+                } else if(aspectRatio > _config.min2ptAspectRatio && aspectRatio < _config.max2ptAspectRatio) {
                     index = 1;
                 } else {
+                    ++_rejections[REJECT_ASPECT];
                     continue;
                 }
 
-                if(_select == _select_biggest) {
+                if(_config.select == _select_biggest) {
                     if(selectedIndices[index] == -1 || area > largestAreas[index]) {
                         selectedIndices[index] = i;
                         largestAreas[index]    = area;
@@ -804,8 +1826,8 @@ public class StormCV extends WPICameraExtension {
                     centroidX = centroidX*2/rawImage.getWidth()-1;
                     centroidY = centroidY*2/rawImage.getWidth()-1;
 
-                    double dx = centroidX-_desiredLocNormed.x(),
-                           dy = centroidY-_desiredLocNormed.y();
+                    double dx = centroidX-frame.desiredLocNormed.x(),
+                           dy = centroidY-frame.desiredLocNormed.y();
 
                     double dist = Math.sqrt(dx*dx+dy*dy);
                     if(selectedIndices[index] == -1 || dist < smallestDistances[index]) {
@@ -815,79 +1837,442 @@ public class StormCV extends WPICameraExtension {
                 }
             }
         }
+        return selectedIndices;
+    }
+    
+    // Hands back every frame-sized temporary, so the next frame acquires
+    // them at its size
+    private void _releaseImages() {
+        _frame.releaseBin(_images);
+        for(StageFrame frame:_pipelineFrames) {
+            frame.releaseBin(_images);
+        }
+        _images.release(_small);
+        _images.release(_refineBin);
+        _images.release(_hsv);
+        _images.release(_hueLow);
+        _images.release(_hueHigh);
+        _images.release(_satLow);
+        _images.release(_satHigh);
+        _images.release(_valLow);
+        _images.release(_valHigh);
+        _small = _refineBin = _hsv = null;
+        _hueLow = _hueHigh = _satLow = _satHigh = _valLow = _valHigh = null;
+    }
+    
+    private static void _deallocateIfNonNull(Pointer p) {
+        if(p != null && !p.isNull()) {
+            p.deallocate();
+        }
+    }
+    
+    /**
+     * Frees everything native this instance holds and stops its threads.
+     * Nothing may be processed afterwards. Called when SmartDashboard
+     * removes the widget; the command line tools call it themselves.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            CameraScheduler.shared().remove(_camera);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        _frameQueue.dispose();
+        // Nothing can still be using the images once this has finished the
+        // frame in flight
+        _engine.close();
+        _captures.close();
+        if(_offloadClient != null) {
+            _offloadClient.close();
+            _offloadClient = null;
+        }
+        if(_recorder != null) {
+            _recorder.close();
+            _recorder = null;
+        }
+        if(_testFrames != null) {
+            _testFrames.dispose();
+            _testFrames = null;
+        }
         
-        Color[] colors = { _contourColor3pt,_contourColor2pt };
+        _stripes.close();
+        _overlay.close();
+        _taps.close();
+        _releaseImages();
+        _frame.dispose();
+        for(StageFrame frame:_pipelineFrames) {
+            frame.dispose();
+        }
+        _pipelineFrames.clear();
+        _spareFrames.clear();
+        _shownFrame = null;
+        if(_images.getCheckedOut() != 0) {
+            Logger.getLogger(StormCV.class.getName()).log(Level.WARNING,
+                    "{0} native images were never released", _images.getCheckedOut());
+        }
+        _images.close();
         
-        for(int i=0;i<selectedIndices.length;++i) {
-            int selectedIndex = selectedIndices[i];
-            if(selectedIndex == -1) {
-                _sendData(i,false, 0, 0);
+        _deallocateIfNonNull(_storage);
+        _storage = null;
+        _deallocateIfNonNull(_morphology);
+    }
+    
+    @Override
+    public void disconnect() {
+        super.disconnect();
+        close();
+    }
+    
+    /**
+     * Runs every frame of a FrameRecorder file through processImage as fast
+     * as it'll go, printing what was sent at the time next to what gets sent
+     * now.
+     */
+    private static void _replay(StormCV cv,String filename) {
+        RecordedFrames frames;
+        try {
+            frames = new RecordedFrames(new File(filename));
+        } catch (IOException e) {
+            System.err.println("Could not read recording: " + e.getMessage());
+            return;
+        }
+        if(frames.getChannels() != 3) {
+            System.err.println("Only color recordings can be replayed");
+            return;
+        }
+        
+        WPIColorImage frame = StormCVUtil.createWPIColorImage(frames.getWidth(), frames.getHeight());
+        int replayed = 0;
+        long startTime = System.nanoTime();
+        for(int i=0;i<frames.size();++i) {
+            if(!frames.seek(i)) {
+                System.out.println("Frame " + i + " is incomplete, skipping");
                 continue;
             }
+            frames.read(StormCVUtil.getIplImage(frame));
+            
+            System.out.println("Frame " + frames.getSequence() + " at " + frames.getTimeMillis() +
+                               " ms (config " + frames.getConfigVersion() + "):");
+            for(int r=0;r<frames.getResultCount() && r<prefixes.length;++r) {
+                System.out.println("Recorded " + prefixes[r] + ": " +
+                                   (frames.getFound(r) ? "(" + frames.getX(r) + "," + frames.getY(r) + ")" : "not found"));
+            }
             
-            CvSeq selectedContour = convexContours.get(selectedIndex);
-            _processContour(i, rawImage, selectedContour, colors[i]);
+            cv.processImage(frame);
+            ++replayed;
+        }
+        double seconds = (System.nanoTime()-startTime)/1.0e9;
+        System.out.println("Replayed " + replayed + " frames in " + seconds + " s (" +
+                           replayed/seconds + " fps)");
+        frame.dispose();
+    }
+    
+    /**
+     * Runs a load test with the options after "--load" in args, or returns
+     * false if they don't make sense.
+     */
+    private static boolean _loadTest(String[] args,int start) {
+        int width   = 640,
+            height  = 480,
+            targets = 2;
+        double noise   = 0.002,
+               yaw     = 0,
+               sway    = 0.1,
+               fps     = 0,      // 0 to sweep
+               seconds = 5;
+        try {
+            for(int i=start;i<args.length;i+=2) {
+                if(i+1 == args.length) {
+                    return false;
+                }
+                String value = args[i+1];
+                switch(args[i]) {
+                    case "--size":
+                        String[] size = value.split("x");
+                        if(size.length != 2) {
+                            return false;
+                        }
+                        width  = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                        break;
+                    case "--targets": targets = Integer.parseInt(value);   break;
+                    case "--noise":   noise   = Double.parseDouble(value); break;
+                    case "--yaw":     yaw     = Double.parseDouble(value); break;
+                    case "--sway":    sway    = Double.parseDouble(value); break;
+                    case "--fps":     fps     = Double.parseDouble(value); break;
+                    case "--seconds": seconds = Double.parseDouble(value); break;
+                    default:
+                        return false;
+                }
+            }
+        } catch(NumberFormatException e) {
+            return false;
         }
         
-        long totalTime = System.nanoTime()-startTime;
-        
-        _sendTime(totalTime);
-//        System.out.println("Ending processImage");
-        
-        return rawImage;
+        SyntheticFrames frames = new SyntheticFrames(width, height, targets, noise, 2729);
+        frames.setPose(0, 0, yaw, sway);
+        LoadTest test = new LoadTest(frames, seconds);
+        System.out.println("Load test: " + width + "x" + height + ", " + targets + " targets, " +
+                           seconds + " s per rate");
+        LoadTest.printHeader();
+        try {
+            if(fps > 0) {
+                LoadTest.print(test.run(fps));
+            } else {
+                double best = 0;
+                for(LoadTest.Step step:test.sweep()) {
+                    if(step.isSustainable()) {
+                        best = step.targetFps;
+                    }
+                }
+                System.out.println((best > 0) ? String.format("Highest sustainable rate: %.1f fps", best)
+                                              : "Can't sustain even " + LoadTest.MIN_FPS + " fps");
+            }
+        } catch(InterruptedException e) {
+            System.err.println("Load test interrupted");
+        } finally {
+            frames.dispose();
+        }
+        return true;
     }
     
-    private ArrayList<IplImage> _displayedImages = new ArrayList<>();
-    private ArrayList<CanvasFrame> _frames = new ArrayList<>();
-    private void _displayImage(String title,IplImage image) {
-        IplImage newImage = IplImage.create(image.cvSize(), image.depth(), image.nChannels());
-        cvCopy(image, newImage);
-        _displayedImages.add(newImage);
-        CanvasFrame result = new CanvasFrame(title);
-        result.showImage(newImage.getBufferedImage());
-        _frames.add(result);
+    /**
+     * Runs a BackendCheck with the options after "--check-backends" in args.
+     * @return whether every trial passed, or null if the options don't make
+     *         sense
+     */
+    private static Boolean _checkBackends(String[] args,int start) {
+        int trials = 1000;
+        long seed  = 2729;
+        try {
+            for(int i=start;i<args.length;i+=2) {
+                if(i+1 == args.length) {
+                    return null;
+                }
+                String value = args[i+1];
+                switch(args[i]) {
+                    case "--trials": trials = Integer.parseInt(value); break;
+                    case "--seed":   seed   = Long.parseLong(value);   break;
+                    default:
+                        return null;
+                }
+            }
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        
+        BackendCheck check = new BackendCheck(seed);
+        try {
+            int failures = check.run(trials);
+            System.out.println((trials-failures) + " of " + trials + " trials passed");
+            System.out.println("A cvMorphologyEx straight on the ROI would have differed in " +
+                               check.getRoiDifferences() + " of " + check.getRoiTrials() +
+                               " trials with a region (it reads the pixels around it)");
+            return failures == 0;
+        } finally {
+            check.close();
+        }
     }
     
-    private static void _deallocateIfNonNull(Pointer p) {
-        if(p != null && !p.isNull()) {
-            p.deallocate();
+    /**
+     * Runs a VisionServer with the options after "--server" in args, or
+     * returns false if they don't make sense.
+     */
+    private static boolean _server(String[] args,int start) {
+        int port        = VisionProtocol.DEFAULT_PORT,
+            connections = 4;
+        try {
+            for(int i=start;i<args.length;i+=2) {
+                if(i+1 == args.length) {
+                    return false;
+                }
+                switch(args[i]) {
+                    case "--port":        port        = Integer.parseInt(args[i+1]); break;
+                    case "--connections": connections = Integer.parseInt(args[i+1]); break;
+                    default:
+                        return false;
+                }
+            }
+        } catch(NumberFormatException e) {
+            return false;
+        }
+        try {
+            new VisionServer(port, connections).serve();
+        } catch(IOException e) {
+            System.err.println("Server failed: " + e);
         }
+        return true;
     }
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        _deallocateIfNonNull(_size);
-        _deallocateIfNonNull(_bin);
-        _deallocateIfNonNull(_hueLow);
-        _deallocateIfNonNull(_hueHigh);
-        _deallocateIfNonNull(_satLow);
-        _deallocateIfNonNull(_satHigh);
-        _deallocateIfNonNull(_valLow);
-        _deallocateIfNonNull(_valHigh);
-        for(IplImage image:_displayedImages) {
-            _deallocateIfNonNull(image);
+    
+    /**
+     * Sends the images after "--remote HOST:PORT [--jpeg]" in args to a
+     * VisionServer one at a time and prints what comes back, or returns
+     * false if the options don't make sense.
+     */
+    private static boolean _remote(String[] args,int start) {
+        if(start >= args.length) {
+            return false;
+        }
+        String server = args[start++];
+        boolean jpeg = false;
+        if(start < args.length && args[start].equals("--jpeg")) {
+            jpeg = true;
+            ++start;
+        }
+        if(start == args.length) {
+            return false;
         }
-        for(CanvasFrame frame:_frames) {
-            if(frame.isVisible()) {
-                frame.setVisible(false);
-                frame.dispose();
+        int colon = server.lastIndexOf(':');
+        String host = (colon < 0) ? server : server.substring(0, colon);
+        int port;
+        try {
+            port = (colon < 0) ? VisionProtocol.DEFAULT_PORT : Integer.parseInt(server.substring(colon+1));
+        } catch(NumberFormatException e) {
+            return false;
+        }
+        
+        final Semaphore done = new Semaphore(0);
+        VisionClient.Listener printer = new VisionClient.Listener() {
+            @Override
+            public void result(long sequence,long roundTripNanos,long processNanos,
+                               int count,boolean[] found,double[] x,double[] y) {
+                System.out.println("Frame " + sequence + ": processed in " + processNanos/1.0e6 +
+                                   " ms, round trip " + roundTripNanos/1.0e6 + " ms");
+                for(int i=0;i<count && i<prefixes.length;++i) {
+                    System.out.println(prefixes[i] + ": " + (found[i] ? "(" + x[i] + "," + y[i] + ")" : "not found"));
+                }
+                done.release();
+            }
+            
+            @Override
+            public void disconnected(IOException reason) {
+                System.err.println("Lost server: " + reason);
+                done.release(Integer.MAX_VALUE/2);
+            }
+        };
+        try(VisionClient client = new VisionClient(host, port, 1, 5000, printer)) {
+            for(int i=start;i<args.length;++i) {
+                System.out.println(args[i] + ":");
+                WPIColorImage image = new WPIColorImage(ImageIO.read(new File(args[i])));
+                client.send(StormCVUtil.getIplImage(image), jpeg);
+                done.acquire();
+                image.dispose();
             }
+        } catch(IOException e) {
+            System.err.println("Remote failed: " + e);
+        } catch(InterruptedException e) {
+            System.err.println("Remote interrupted");
         }
+        return true;
     }
     
     public static void main(String[] args) {
-        boolean showUsage = (args.length == 0);
-        boolean flagShow  = false;
-        if(!showUsage && args[0].equals("--show")) {
-            flagShow  = true;
-            if(args.length == 1) {
+        // Applies to every mode, so it's taken off the front first
+        if(args.length > 1 && args[0].equals("--backend")) {
+            switch(args[1]) {
+                case "opencv": _defaultBackend = "OpenCV";    break;
+                case "java":   _defaultBackend = "Pure Java"; break;
+                default:
+                    System.err.println("Unknown backend \"" + args[1] + "\"");
+                    System.exit(1);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if(args.length > 0 && args[0].equals("--load")) {
+            if(_loadTest(args, 1)) {
+                System.exit(0);
+            }
+            args = new String[0];
+        } else if(args.length > 0 && args[0].equals("--server")) {
+            if(_server(args, 1)) {
+                System.exit(0);
+            }
+            args = new String[0];
+        } else if(args.length > 0 && args[0].equals("--remote")) {
+            if(_remote(args, 1)) {
+                System.exit(0);
+            }
+            args = new String[0];
+        } else if(args.length > 0 && args[0].equals("--check-backends")) {
+            Boolean passed = _checkBackends(args, 1);
+            if(passed != null) {
+                System.exit(passed ? 0 : 1);
+            }
+            args = new String[0];
+        }
+        
+        boolean showUsage  = (args.length == 0);
+        boolean flagShow   = false,
+                flagReplay = false,
+                flagBatch  = false;
+        int batchThreads = Runtime.getRuntime().availableProcessors();
+        String batchCsv  = "results.csv";
+        double showRate  = DEFAULT_STAGE_RATE;
+        int start = 0;
+        if(!showUsage && args[start].equals("--batch")) {
+            flagBatch = true;
+            ++start;
+            try {
+                while(start+1 < args.length && args[start].startsWith("--")) {
+                    if(args[start].equals("--threads")) {
+                        batchThreads = Integer.parseInt(args[start+1]);
+                    } else if(args[start].equals("--csv")) {
+                        batchCsv = args[start+1];
+                    } else {
+                        break;
+                    }
+                    start += 2;
+                }
+            } catch(NumberFormatException e) {
                 showUsage = true;
             }
+        } else if(!showUsage && args[start].equals("--show")) {
+            flagShow  = true;
+            ++start;
+            if(start+1 < args.length && args[start].equals("--rate")) {
+                try {
+                    showRate = Double.parseDouble(args[start+1]);
+                } catch(NumberFormatException e) {
+                    showUsage = true;
+                }
+                start += 2;
+            }
+        }
+        if(start < args.length && args[start].equals("--replay")) {
+            flagReplay = true;
+            ++start;
+        }
+        if(start == args.length || (flagReplay && start != args.length-1)) {
+            showUsage = true;
         }
         
         if(showUsage) {
-            System.out.println("Usage: [--show] [FILE1] ... [FILEN]");
+            System.out.println("Usage: [--show [--rate FPS]] [FILE1] ... [FILEN]");
+            System.out.println("       [--show [--rate FPS]] --replay RECORDING");
+            System.out.println("           (--rate is how often each stage window can refresh)");
+            System.out.println("       --batch [--threads N] [--csv FILE] PATH1 ... PATHN");
+            System.out.println("           (PATHs can be images, folders or globs)");
+            System.out.println("       --load [--size WxH] [--targets N] [--noise F] [--yaw DEG] [--sway F]");
+            System.out.println("              [--fps F] [--seconds S]");
+            System.out.println("           (without --fps, finds the highest rate that keeps up)");
+            System.out.println("       --server [--port N] [--connections N]");
+            System.out.println("       --remote HOST:PORT [--jpeg] FILE1 ... FILEN");
+            System.out.println("           (sends FILEs to a --server and prints what it finds)");
+            System.out.println("       --check-backends [--trials N] [--seed N]");
+            System.out.println("           (checks both backends close holes the same, on random masks)");
+            System.out.println("Any of these can start with --backend opencv|java to pick how");
+            System.out.println("thresholding and hole closing are done");
+            System.exit(0);
+        }
+        
+        if(flagBatch) {
+            try {
+                List<File> images = BatchRunner.findImages(Arrays.asList(args).subList(start, args.length));
+                new BatchRunner(batchThreads, new File(batchCsv)).run(images);
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Batch failed: " + e);
+            }
             System.exit(0);
         }
         
@@ -896,11 +2281,15 @@ public class StormCV extends WPICameraExtension {
         cv._sendResults = false;
         
         cv._displayIntermediate = flagShow;
+        cv._taps.setMaxRate(showRate);
         cv._initVars();
         
-        Scanner scanner = new Scanner(System.in);
+        if(flagReplay) {
+            _replay(cv, args[start]);
+            System.exit(0);
+        }
         
-        int start = flagShow ? 1 : 0;
+        Scanner scanner = new Scanner(System.in);
         
         for(int i=start;i<args.length;++i) {
             String filename = args[i];
@@ -919,7 +2308,7 @@ public class StormCV extends WPICameraExtension {
             
             result = cv.processImage(rawImage);
             
-            cv._displayImage("Result: " + filename, StormCVUtil.getIplImage(result));
+            cv._taps.show("Result", StormCVUtil.getIplImage(result));
             
             System.out.println("Press Enter to Continue...");
             scanner.nextLine();
@@ -0,0 +1,191 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import edu.wpi.first.wpijavacv.StormCVUtil;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Draws deterministic fake camera frames: target-like rectangles of
+ * in-range green on a dim, noisy background, with some stray green specks.
+ *
+ * The same arguments always give the same frame, so timings taken on these
+ * are comparable between runs and machines.
+ *
+ * draw() does a whole frame from scratch. An instance is a stand-in camera
+ * instead: the noisy background is drawn once, and next() copies it into
+ * the same native frame every time and draws the targets on top, so making
+ * a frame costs a copy and a few lines. The targets can be turned (yaw) and
+ * moved, and sway around that position from frame to frame so tracking
+ * gets exercised the way a moving robot would.
+ * @author Joe
+ */
+public class SyntheticFrames {
+    // Outer dimensions of the 3pt and 2pt goals, in inches
+    public static final double ASPECT_3PT = 62.0/20,
+                               ASPECT_2PT = 62.0/29;
+
+    // Frames per full swing of the sway
+    private static final int SWAY_PERIOD = 120;
+
+    private static final CvScalar GREEN = CV_RGB(0, 255, 0);
+
+    private final int _targets;
+    private final IplImage _background;
+    private final WPIColorImage _frame;
+    private final CvPoint[] _corners = { new CvPoint(0, 0), new CvPoint(0, 0),
+                                         new CvPoint(0, 0), new CvPoint(0, 0) };
+
+    private double _offsetX,
+                   _offsetY,
+                   _yaw,
+                   _sway;
+
+    /**
+     * A width x height source of frames with the given number of targets
+     * and fraction of background pixels turned into green specks.
+     */
+    public SyntheticFrames(int width,int height,int targets,double noise,long seed) {
+        _targets    = targets;
+        _background = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+        draw(_background, 0, noise, seed);
+        _frame = StormCVUtil.createWPIColorImage(width, height);
+    }
+
+    public int getWidth() {
+        return _background.width();
+    }
+
+    public int getHeight() {
+        return _background.height();
+    }
+
+    public int getTargets() {
+        return _targets;
+    }
+
+    /**
+     * Where the targets are and which way they face.
+     * @param offsetX   sideways shift, as a fraction of a target's grid cell
+     * @param offsetY   downwards shift, as a fraction of a grid cell
+     * @param yawDegrees how far the targets are turned away from the camera
+     * @param sway      how far (as a fraction of a grid cell) they wander
+     *                  around that position over SWAY_PERIOD frames
+     */
+    public void setPose(double offsetX,double offsetY,double yawDegrees,double sway) {
+        _offsetX = offsetX;
+        _offsetY = offsetY;
+        _yaw     = Math.toRadians(yawDegrees);
+        _sway    = sway;
+    }
+
+    /**
+     * Frame number index. It's the same image every call, so it's only good
+     * until the next one.
+     */
+    public WPIColorImage next(long index) {
+        IplImage frame = StormCVUtil.getIplImage(_frame);
+        cvCopy(_background, frame);
+
+        double phase = 2*Math.PI*(index%SWAY_PERIOD)/SWAY_PERIOD;
+        _drawTargets(frame, _targets,
+                     _offsetX + _sway*Math.sin(phase),
+                     _offsetY + _sway*Math.sin(2*phase)/2,
+                     _yaw, _corners);
+        return _frame;
+    }
+
+    public void dispose() {
+        _frame.dispose();
+        _background.release();
+    }
+
+    /**
+     * Fills frame (8-bit BGR) with background noise, then draws targets
+     * alternating between 3pt and 2pt shapes on a grid.
+     * @param noise fraction of background pixels turned into green specks
+     */
+    public static void draw(IplImage frame,int targets,double noise,long seed) {
+        int width  = frame.width(),
+            height = frame.height(),
+            step   = frame.widthStep();
+        Random random = new Random(seed);
+
+        ByteBuffer buf = frame.getByteBuffer();
+        byte[] row = new byte[width*3];
+        for(int y=0;y<height;++y) {
+            for(int x=0,i=0;x<width;++x,i+=3) {
+                if(random.nextDouble() < noise) {
+                    row[i]   = 0;
+                    row[i+1] = (byte)255;
+                    row[i+2] = 0;
+                } else {
+                    int gray = 20 + random.nextInt(40);
+                    row[i]   = (byte)(gray + random.nextInt(8));
+                    row[i+1] = (byte)(gray + random.nextInt(8));
+                    row[i+2] = (byte)(gray + random.nextInt(8));
+                }
+            }
+            buf.position(y*step);
+            buf.put(row);
+        }
+
+        _drawTargets(frame, targets, 0, 0, 0, null);
+    }
+
+    // Draws the targets, each shifted by (offsetX,offsetY) grid cells and
+    // turned by yaw radians. Turned targets are drawn as the trapezoid they'd
+    // look like; corners is where their points go (null to allocate them).
+    private static void _drawTargets(IplImage frame,int targets,double offsetX,double offsetY,
+                                     double yaw,CvPoint[] corners) {
+        if(targets <= 0) {
+            return;
+        }
+        int width  = frame.width(),
+            height = frame.height();
+        int columns = (int)Math.ceil(Math.sqrt(targets)),
+            rows    = (targets+columns-1)/columns;
+        int cellWidth  = width /columns,
+            cellHeight = height/rows;
+        for(int i=0;i<targets;++i) {
+            double aspect = (i%2 == 0) ? ASPECT_3PT : ASPECT_2PT;
+            double targetWidth  = cellWidth*0.6,
+                   targetHeight = targetWidth/aspect;
+            if(targetHeight > cellHeight*0.6) {
+                targetHeight = cellHeight*0.6;
+                targetWidth  = targetHeight*aspect;
+            }
+            double centerX = (i%columns)*cellWidth  + cellWidth /2 + offsetX*cellWidth,
+                   centerY = (i/columns)*cellHeight + cellHeight/2 + offsetY*cellHeight;
+            int thickness = Math.max(2, (int)(targetWidth/16));
+            if(yaw == 0) {
+                cvRectangle(frame,
+                            _corner(corners, 0, centerX-targetWidth/2, centerY-targetHeight/2),
+                            _corner(corners, 1, centerX+targetWidth/2, centerY+targetHeight/2),
+                            GREEN, thickness, 8, 0);
+                continue;
+            }
+            // Turning it narrows it, and the far side looks shorter than
+            // the near one
+            double halfWidth = targetWidth*Math.cos(yaw)/2,
+                   nearHalf  = targetHeight*(1+Math.sin(yaw)/4)/2,
+                   farHalf   = targetHeight*(1-Math.sin(yaw)/4)/2;
+            CvPoint topLeft     = _corner(corners, 0, centerX-halfWidth, centerY-farHalf),
+                    topRight    = _corner(corners, 1, centerX+halfWidth, centerY-nearHalf),
+                    bottomRight = _corner(corners, 2, centerX+halfWidth, centerY+nearHalf),
+                    bottomLeft  = _corner(corners, 3, centerX-halfWidth, centerY+farHalf);
+            cvLine(frame, topLeft,     topRight,    GREEN, thickness, 8, 0);
+            cvLine(frame, topRight,    bottomRight, GREEN, thickness, 8, 0);
+            cvLine(frame, bottomRight, bottomLeft,  GREEN, thickness, 8, 0);
+            cvLine(frame, bottomLeft,  topLeft,     GREEN, thickness, 8, 0);
+        }
+    }
+
+    private static CvPoint _corner(CvPoint[] corners,int index,double x,double y) {
+        if(corners == null) {
+            return new CvPoint((int)x, (int)y);
+        }
+        return corners[index].x((int)x).y((int)y);
+    }
+}
@@ -0,0 +1,307 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+import static storm2013.smartdashboard.VisionProtocol.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends frames to a VisionServer and hands the results to a Listener as
+ * they come back.
+ *
+ * send() is meant for the camera thread (one thread only) and never waits
+ * on the server or the network. It packs the frame into one of two native
+ * buffers, and a writer thread of the client's own puts it on the socket.
+ * A frame is dropped (and counted) if maxInFlight frames are already out,
+ * or if the writer is still busy with the frame before, the same as when
+ * processing locally can't keep up. Results are read on a third thread.
+ * @author Joe
+ */
+public class VisionClient implements AutoCloseable {
+    /** Called on the client's reader thread. */
+    public interface Listener {
+        /**
+         * The results for frame sequence. The arrays are reused for the next
+         * result, so copy anything that's needed later.
+         */
+        void result(long sequence,long roundTripNanos,long processNanos,
+                    int count,boolean[] found,double[] x,double[] y);
+
+        /** The connection went away (not called after close()). */
+        void disconnected(IOException reason);
+    }
+
+    private final SocketChannel _channel;
+    private final Listener _listener;
+    private final Thread _reader,
+                         _writer;
+    private final int _jpegParams[] = { CV_IMWRITE_JPEG_QUALITY, 90, 0 };
+
+    // Where the sequence number goes in a frame header, after the magic
+    // number and format
+    private static final int SEQUENCE_OFFSET = 4 + 4;
+
+    // Packed frames, header and all. send() fills whichever one the writer
+    // isn't writing and leaves it in _pending for the writer to pick up.
+    private final ByteBuffer[] _buffers = new ByteBuffer[2];
+    private ByteBuffer _pending,
+                       _writing;
+    private IOException _writeFailure;
+
+    // When each frame still out was sent, by sequence number. Results come
+    // back in order and there are never more than _sentTimes.length out,
+    // so a slot is never reused before its result is in.
+    private final long[] _sentTimes;
+    private int _inFlight;
+    private long _sequence,
+                 _sent,
+                 _dropped,
+                 _received;
+    private volatile boolean _closed;
+    private boolean _lost;
+
+    public VisionClient(String host,int port,int maxInFlight,int timeoutMillis,Listener listener) throws IOException {
+        _listener  = listener;
+        _sentTimes = new long[Math.max(1, maxInFlight)];
+        _channel   = SocketChannel.open();
+        try {
+            _channel.socket().setTcpNoDelay(true);
+            _channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch(IOException ex) {
+            _channel.close();
+            throw ex;
+        }
+        _reader = new Thread("VisionClient " + host + ":" + port) {
+            @Override
+            public void run() {
+                _read();
+            }
+        };
+        _reader.setDaemon(true);
+        _writer = new Thread("VisionClient " + host + ":" + port + " writer") {
+            @Override
+            public void run() {
+                _write();
+            }
+        };
+        _writer.setDaemon(true);
+        _reader.start();
+        _writer.start();
+    }
+
+    /** JPEG quality (0-100) for send(frame,true). */
+    public void setJpegQuality(int quality) {
+        _jpegParams[1] = Math.max(0, Math.min(100, quality));
+    }
+
+    /**
+     * Queues frame (8-bit BGR) to be sent as raw pixels, or as a JPEG if
+     * jpeg is true. frame can be reused as soon as this returns.
+     * @return false if it was dropped because too many frames are out, the
+     *         previous one hasn't been written yet, or it's bigger than
+     *         the server takes
+     * @throws IOException if the connection has already failed
+     */
+    public boolean send(IplImage frame,boolean jpeg) throws IOException {
+        int index;
+        synchronized(this) {
+            if(_writeFailure != null) {
+                throw _writeFailure;
+            }
+            if(_inFlight == _sentTimes.length || _pending != null) {
+                ++_dropped;
+                return false;
+            }
+            index = (_writing != null && _writing == _buffers[0]) ? 1 : 0;
+        }
+
+        // The writer never touches the buffer that isn't _writing. Nothing
+        // is reserved until the frame is packed, so a failure here doesn't
+        // use up an in-flight slot.
+        ByteBuffer buffer;
+        int width  = frame.width(),
+            height = frame.height();
+        if(jpeg) {
+            CvMat encoded = cvEncodeImage(".jpg", frame, _jpegParams);
+            try {
+                int length = encoded.rows()*encoded.cols();
+                if(_tooBig(length)) {
+                    return false;
+                }
+                ByteBuffer data = encoded.getByteBuffer();
+                data.limit(length).position(0);
+                buffer = _fill(index, FORMAT_JPEG, width, height, length);
+                buffer.put(data);
+            } finally {
+                encoded.release();
+            }
+        } else {
+            int rowBytes = width*3,
+                step     = frame.widthStep();
+            if(_tooBig((long)rowBytes*height)) {
+                return false;
+            }
+            ByteBuffer pixels = frame.getByteBuffer();
+            buffer = _fill(index, FORMAT_BGR, width, height, rowBytes*height);
+            if(step == rowBytes) {
+                pixels.limit(rowBytes*height).position(0);
+                buffer.put(pixels);
+            } else {
+                for(int y=0;y<height;++y) {
+                    pixels.limit(y*step+rowBytes).position(y*step);
+                    buffer.put(pixels);
+                }
+            }
+        }
+        buffer.flip();
+
+        // Only send() adds to _inFlight or sets _pending, so the slot that
+        // was free above still is
+        synchronized(this) {
+            ++_inFlight;
+            long sequence = _sequence++;
+            _sentTimes[(int)(sequence%_sentTimes.length)] = System.nanoTime();
+            buffer.putLong(SEQUENCE_OFFSET, sequence);
+            _pending = buffer;
+            notifyAll();
+        }
+        return true;
+    }
+
+    // Frames the server would refuse are dropped (and counted) here instead
+    private synchronized boolean _tooBig(long length) {
+        if(length <= MAX_PAYLOAD_BYTES) {
+            return false;
+        }
+        ++_dropped;
+        return true;
+    }
+
+    public synchronized long getSent() {
+        return _sent;
+    }
+
+    public synchronized long getDropped() {
+        return _dropped;
+    }
+
+    public synchronized long getReceived() {
+        return _received;
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        try {
+            _channel.close();
+        } catch(IOException ex) {
+            // Closing anyway
+        }
+        _reader.interrupt();
+        _writer.interrupt();
+    }
+
+    // Starts buffer index (reallocated if it's too small) with the frame
+    // header, ready for length bytes of payload. The sequence number is
+    // filled in once the frame is sent.
+    private ByteBuffer _fill(int index,int format,int width,int height,int length) {
+        int size = FRAME_HEADER_BYTES + length;
+        ByteBuffer buffer = _buffers[index];
+        if(buffer == null || buffer.capacity() < size) {
+            // Only when the frame grows; a little room is left for JPEGs
+            // that come out bigger than the last one
+            buffer = ByteBuffer.allocateDirect(size + size/4);
+            _buffers[index] = buffer;
+        }
+        buffer.clear();
+        buffer.putInt(FRAME_MAGIC).putInt(format).putLong(0)
+              .putInt(width).putInt(height).putInt(length);
+        return buffer;
+    }
+
+    private void _write() {
+        try {
+            while(true) {
+                ByteBuffer buffer;
+                synchronized(this) {
+                    _writing = null;
+                    while(_pending == null) {
+                        if(_closed) {
+                            return;
+                        }
+                        wait();
+                    }
+                    buffer   = _pending;
+                    _writing = buffer;
+                    _pending = null;
+                }
+                writeFully(_channel, buffer);
+                synchronized(this) {
+                    ++_sent;
+                }
+            }
+        } catch(InterruptedException ex) {
+            // Closed
+        } catch(IOException ex) {
+            synchronized(this) {
+                _writeFailure = ex;
+            }
+            _lost(ex);
+        }
+    }
+
+    // Tells the listener the connection is gone, once
+    private void _lost(IOException reason) {
+        synchronized(this) {
+            if(_closed || _lost) {
+                return;
+            }
+            _lost = true;
+        }
+        _listener.disconnected(reason);
+    }
+
+    private void _read() {
+        ByteBuffer header  = ByteBuffer.allocateDirect(RESULT_HEADER_BYTES),
+                   targets = ByteBuffer.allocateDirect(MAX_TARGETS*TARGET_BYTES);
+        boolean[] found = new boolean[MAX_TARGETS];
+        double[] x = new double[MAX_TARGETS],
+                 y = new double[MAX_TARGETS];
+        try {
+            while(true) {
+                header.clear();
+                readFully(_channel, header);
+                header.flip();
+                int magic = header.getInt();
+                long sequence     = header.getLong(),
+                     processNanos = header.getLong();
+                int count = header.getInt();
+                if(magic != RESULT_MAGIC || count < 0 || count > MAX_TARGETS) {
+                    throw new IOException("Bad result header");
+                }
+
+                targets.clear().limit(count*TARGET_BYTES);
+                readFully(_channel, targets);
+                targets.flip();
+                for(int i=0;i<count;++i) {
+                    found[i] = targets.get() != 0;
+                    x[i]     = targets.getDouble();
+                    y[i]     = targets.getDouble();
+                }
+
+                long roundTrip;
+                synchronized(this) {
+                    roundTrip = System.nanoTime()-_sentTimes[(int)(sequence%_sentTimes.length)];
+                    --_inFlight;
+                    ++_received;
+                }
+                _listener.result(sequence, roundTrip, processNanos, count, found, x, y);
+            }
+        } catch(IOException ex) {
+            _lost(ex);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package storm2013.smartdashboard;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The wire format between VisionClient and VisionServer. Everything is
+ * big-endian.
+ *
+ * Client to server, one per frame:
+ *
+ *     magic, format, sequence, width, height, length      (FRAME_HEADER_BYTES)
+ *     length bytes of payload
+ *
+ * The payload is either packed BGR rows (length is width*height*3) or a
+ * JPEG of the frame (width and height are then only informational).
+ *
+ * Server to client, one per frame, in the order they were sent:
+ *
+ *     magic, sequence, process time (ns), result count,
+ *     { found, x, y } * result count                       (RESULT_BYTES)
+ *
+ * x and y are angles in degrees, the same as what StormCV puts in the
+ * table.
+ * @author Joe
+ */
+public class VisionProtocol {
+    public static final int FRAME_MAGIC  = 0x53435646,   // "SCVF"
+                            RESULT_MAGIC = 0x53435652;   // "SCVR"
+
+    public static final int FORMAT_BGR  = 0,
+                            FORMAT_JPEG = 1;
+
+    public static final int DEFAULT_PORT = 5800;
+
+    public static final int FRAME_HEADER_BYTES  = 4 + 4 + 8 + 4 + 4 + 4,
+                            RESULT_HEADER_BYTES = 4 + 8 + 8 + 4,
+                            TARGET_BYTES        = 1 + 8 + 8,
+                            MAX_TARGETS         = 4,
+                            RESULT_BYTES        = RESULT_HEADER_BYTES + MAX_TARGETS*TARGET_BYTES;
+
+    // Nobody sends 64MB frames; anything bigger is a corrupt stream
+    public static final int MAX_PAYLOAD_BYTES = 64*1024*1024;
+
+    /** Reads until buffer is full. */
+    public static void readFully(ReadableByteChannel channel,ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /** Writes all of buffer. */
+    public static void writeFully(WritableByteChannel channel,ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
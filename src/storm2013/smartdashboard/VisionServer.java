@@ -0,0 +1,210 @@
+package storm2013.smartdashboard;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+import static storm2013.smartdashboard.VisionProtocol.*;
+import edu.wpi.first.wpijavacv.StormCVUtil;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs StormCV for whoever connects, with no dashboard attached: frames come
+ * in over a socket (see VisionProtocol) and results go back the same way.
+ *
+ * Every connection gets its own StormCV (with default settings, except that
+ * nothing is drawn) on its own thread, up to the given number at once, so
+ * one server can take several cameras. Raw frames are read straight into
+ * the native image and JPEGs into a native buffer that OpenCV decodes,
+ * through direct buffers, so no pixels pass through the Java heap.
+ * @author Joe
+ */
+public class VisionServer {
+    private final int _port;
+    private final ExecutorService _connections;
+
+    public VisionServer(int port,int maxConnections) {
+        _port        = port;
+        _connections = Executors.newFixedThreadPool(Math.max(1, maxConnections));
+    }
+
+    /** Accepts connections until the thread is interrupted. */
+    public void serve() throws IOException {
+        try(ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(_port));
+            System.out.println("Listening on port " + _port);
+            while(!Thread.currentThread().isInterrupted()) {
+                final SocketChannel channel = server.accept();
+                _connections.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        _handle(channel);
+                    }
+                });
+            }
+        } finally {
+            _connections.shutdownNow();
+        }
+    }
+
+    private void _handle(SocketChannel channel) {
+        String peer = channel.socket().getRemoteSocketAddress().toString();
+        System.out.println("Connected: " + peer);
+
+        StormCV cv;
+        try {
+            cv = new StormCV();
+            cv._sendResults = false;
+            cv._quiet       = true;
+            // Settings can only be changed once _initVars() has filled in
+            // the choices. Nobody sees the frames here.
+            cv._initVars();
+            cv.drawOverlayProperty.setValue(false);
+        } catch(RuntimeException ex) {
+            Logger.getLogger(VisionServer.class.getName()).log(Level.SEVERE, "Can't start processing for " + peer, ex);
+            try {
+                channel.close();
+            } catch(IOException closeEx) {
+                // Already gone
+            }
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocateDirect(FRAME_HEADER_BYTES),
+                   result = ByteBuffer.allocateDirect(RESULT_BYTES);
+        WPIColorImage frame = null;
+        CvMat jpeg = null,
+              jpegView = CvMat.createHeader(1, 1, CV_8UC1);
+        CvRect jpegRect = new CvRect();
+        long frames = 0;
+        try {
+            channel.socket().setTcpNoDelay(true);
+            while(true) {
+                header.clear();
+                try {
+                    readFully(channel, header);
+                } catch(EOFException ex) {
+                    break;
+                }
+                header.flip();
+                int magic    = header.getInt(),
+                    format   = header.getInt();
+                long sequence = header.getLong();
+                int width    = header.getInt(),
+                    height   = header.getInt(),
+                    length   = header.getInt();
+                if(magic != FRAME_MAGIC || length < 0 || length > MAX_PAYLOAD_BYTES ||
+                   width <= 0 || height <= 0) {
+                    throw new IOException("Bad frame header");
+                }
+
+                if(format == FORMAT_BGR) {
+                    // In longs, so a huge width and height can't wrap
+                    // around to the right length
+                    if(length != (long)width*height*3) {
+                        throw new IOException("BGR frame is " + length + " bytes, expected " + (long)width*height*3);
+                    }
+                    frame = _ensureFrame(frame, width, height);
+                    _readPixels(channel, StormCVUtil.getIplImage(frame), width, height);
+                } else if(format == FORMAT_JPEG) {
+                    if(jpeg == null || jpeg.cols() < length) {
+                        if(jpeg != null) {
+                            jpeg.release();
+                        }
+                        jpeg = CvMat.create(1, Math.max(length, 64*1024), CV_8UC1);
+                    }
+                    ByteBuffer data = jpeg.getByteBuffer();
+                    data.clear().limit(length);
+                    readFully(channel, data);
+
+                    // Decode just the bytes that came in
+                    jpegRect.x(0).y(0).width(length).height(1);
+                    IplImage decoded = cvDecodeImage(cvGetSubRect(jpeg, jpegView, jpegRect), CV_LOAD_IMAGE_COLOR);
+                    if(decoded == null || decoded.isNull()) {
+                        throw new IOException("Couldn't decode JPEG frame " + sequence);
+                    }
+                    // A small JPEG can claim a huge image; hold it to the
+                    // same limit as a BGR frame
+                    if((long)decoded.width()*decoded.height()*3 > MAX_PAYLOAD_BYTES) {
+                        decoded.release();
+                        throw new IOException("JPEG frame " + sequence + " is too big");
+                    }
+                    frame = _ensureFrame(frame, decoded.width(), decoded.height());
+                    cvCopy(decoded, StormCVUtil.getIplImage(frame));
+                    decoded.release();
+                } else {
+                    throw new IOException("Unknown frame format " + format);
+                }
+
+                long start = System.nanoTime();
+                cv.processImage(frame);
+                long nanos = System.nanoTime()-start;
+
+                ResultPublisher results = cv._publisher;
+                int count = Math.min(MAX_TARGETS, StormCV.prefixes.length);
+                result.clear();
+                result.putInt(RESULT_MAGIC).putLong(sequence).putLong(nanos).putInt(count);
+                for(int i=0;i<count;++i) {
+                    result.put((byte)(results.isFound(i) ? 1 : 0))
+                          .putDouble(results.getX(i))
+                          .putDouble(results.getY(i));
+                }
+                result.flip();
+                writeFully(channel, result);
+                ++frames;
+            }
+        } catch(IOException | RuntimeException ex) {
+            Logger.getLogger(VisionServer.class.getName()).log(Level.WARNING, "Dropping " + peer, ex);
+        } finally {
+            try {
+                channel.close();
+            } catch(IOException ex) {
+                // Already gone
+            }
+            cv.close();
+            if(frame != null) {
+                frame.dispose();
+            }
+            if(jpeg != null) {
+                jpeg.release();
+            }
+            jpegView.deallocate();
+            jpegRect.deallocate();
+            System.out.println("Disconnected: " + peer + " after " + frames + " frames");
+        }
+    }
+
+    private static WPIColorImage _ensureFrame(WPIColorImage frame,int width,int height) {
+        if(frame != null && frame.getWidth() == width && frame.getHeight() == height) {
+            return frame;
+        }
+        if(frame != null) {
+            frame.dispose();
+        }
+        return StormCVUtil.createWPIColorImage(width, height);
+    }
+
+    // Reads packed BGR rows straight into image, which may have padded rows
+    private static void _readPixels(SocketChannel channel,IplImage image,int width,int height) throws IOException {
+        ByteBuffer pixels = image.getByteBuffer();
+        int rowBytes = width*3,
+            step     = image.widthStep();
+        if(step == rowBytes) {
+            pixels.limit(rowBytes*height).position(0);
+            readFully(channel, pixels);
+            return;
+        }
+        for(int y=0;y<height;++y) {
+            pixels.limit(y*step+rowBytes).position(y*step);
+            readFully(channel, pixels);
+        }
+    }
+}